@@ -0,0 +1,115 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all JMH benchmarks of this package, see the <code>benchmark</code>
+ * profile: <code>mvn test -Dbenchmark</code>
+ *
+ * <p>
+ * The results are written to <code>target/jmh-report.json</code>, or the file
+ * given by <code>-Dbenchmark.result=...</code>, including the allocation rates
+ * measured by the GC profiler.
+ * </p>
+ * <p>
+ * With <code>-Dbenchmark.baseline=record</code> they are also kept as the
+ * baseline in <code>src/benchmark/baseline.json</code>, along with the JVM and
+ * hardware they were measured on. Otherwise every score is printed next to
+ * the one of the baseline, if there is one, for a run on the same machine.
+ * </p>
+ */
+class BenchmarkRunner {
+
+    private static final Path BASELINE = Paths.get("src", "benchmark", "baseline.json");
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = ".*")
+    void runJmhBenchmarks() throws Exception {
+        String result = System.getProperty("benchmark.result", "target/jmh-report.json");
+        Options options = new OptionsBuilder()
+                .include(getClass().getPackage().getName() + "\\.\\w+Benchmark\\.")
+                .warmupIterations(3)
+                .measurementIterations(5)
+                .forks(1)
+                .addProfiler(GCProfiler.class)
+                .shouldFailOnError(true)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result)
+                .build();
+        new Runner(options).run();
+
+        JSONArray report = JSONArray.fromObject(Files.readString(Paths.get(result), StandardCharsets.UTF_8));
+        if ("record".equals(System.getProperty("benchmark.baseline"))) {
+            JSONObject baseline = new JSONObject();
+            baseline.put("environment", environment());
+            baseline.put("results", report);
+            Files.writeString(BASELINE, baseline.toString(2) + '\n', StandardCharsets.UTF_8);
+        } else if (Files.isRegularFile(BASELINE)) {
+            compare(report, JSONObject.fromObject(Files.readString(BASELINE, StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * Prints the score of every benchmark next to the one of the baseline.
+     */
+    private static void compare(JSONArray report, JSONObject baseline) {
+        Map<String, Double> before = new HashMap<>();
+        for (Object o : baseline.getJSONArray("results")) {
+            before.put(key((JSONObject) o), ((JSONObject) o).getJSONObject("primaryMetric").getDouble("score"));
+        }
+        System.out.println("Compared with the baseline measured on " + baseline.getJSONObject("environment"));
+        for (Object o : report) {
+            JSONObject benchmark = (JSONObject) o;
+            JSONObject metric = benchmark.getJSONObject("primaryMetric");
+            double score = metric.getDouble("score");
+            Double old = before.get(key(benchmark));
+            System.out.printf("%-100s %12.3f %s%s%n", key(benchmark), score, metric.getString("scoreUnit"),
+                    old != null ? String.format(" (baseline %.3f, %+.1f%%)", old, 100 * (score - old) / old) : " (new)");
+        }
+    }
+
+    private static String key(JSONObject benchmark) {
+        JSONObject params = benchmark.optJSONObject("params");
+        return benchmark.getString("benchmark") + (params != null && !params.isEmpty() ? " " + params : "");
+    }
+
+    /**
+     * Describes the JVM and hardware the benchmarks run on.
+     */
+    private static JSONObject environment() throws IOException {
+        JSONObject environment = new JSONObject();
+        environment.put("jvm", System.getProperty("java.vm.name") + ' ' + System.getProperty("java.vm.version"));
+        environment.put("os", System.getProperty("os.name") + ' ' + System.getProperty("os.version")
+                + ' ' + System.getProperty("os.arch"));
+        environment.put("processors", Runtime.getRuntime().availableProcessors());
+        environment.put("maxHeap", Runtime.getRuntime().maxMemory());
+        File cpuInfo = new File("/proc/cpuinfo");
+        if (cpuInfo.isFile()) {
+            for (String line : Files.readAllLines(cpuInfo.toPath(), StandardCharsets.UTF_8)) {
+                if (line.startsWith("model name")) {
+                    environment.put("cpu", line.substring(line.indexOf(':') + 1).trim());
+                    break;
+                }
+            }
+        }
+        return environment;
+    }
+}
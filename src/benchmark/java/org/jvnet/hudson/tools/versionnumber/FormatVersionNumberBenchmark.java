@@ -0,0 +1,92 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import hudson.EnvVars;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Formatting of version-numbers for format-strings of 5 to 30 tokens, compiled
+ * and expanded step by step.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FormatVersionNumberBenchmark {
+
+    /** 5 tokens. */
+    static final String SHORT = "${VERSION_PREFIX}${BUILD_YEAR}.${BUILDS_THIS_YEAR}.${BUILDS_ALL_TIME}-$BUILD_NUMBER";
+
+    /** 12 tokens, with date formats and substrings of environment-variables. */
+    static final String MEDIUM = "${BUILD_DATE_FORMATTED, \"yyyyMMdd\"}.${BUILDS_TODAY, XX}-${GIT_BRANCH}"
+            + "+${GIT_COMMIT, \"7\"}.${BUILD_YEAR}.${BUILD_MONTH, XX}.${BUILD_DAY, XX}.${BUILD_WEEK}"
+            + "-${JOB_BASE_NAME}-${BUILDS_ALL_TIME_Z, XXXX}-${NODE_NAME}-$EXECUTOR_NUMBER";
+
+    /** 30 tokens. */
+    static final String LONG = "${VERSION_PREFIX}${BUILD_YEAR}.${BUILD_MONTH, XX}.${BUILD_DAY, XX}"
+            + ".${BUILDS_TODAY}.${BUILDS_THIS_WEEK}.${BUILDS_THIS_MONTH}.${BUILDS_THIS_YEAR}.${BUILDS_ALL_TIME}"
+            + "-${BUILDS_TODAY_Z}.${BUILDS_THIS_MONTH_Z}.${BUILDS_THIS_YEAR_Z}.${BUILDS_ALL_TIME_Z}"
+            + "+${BUILD_DATE_FORMATTED, \"yyyy-MM-dd'T'HH:mm\"}.${BUILD_DATE_FORMATTED, \"EEE\"}"
+            + ".${MONTHS_SINCE_PROJECT_START}.${YEARS_SINCE_PROJECT_START, XX}"
+            + ".${GIT_COMMIT, \"8\"}.${GIT_COMMIT, \"-4\"}.${GIT_BRANCH, \"+7\"}.$BUILD_NUMBER.$BUILD_ID"
+            + ".${JOB_BASE_NAME}.${NODE_NAME}.${EXECUTOR_NUMBER}.${BUILD_WEEK}.${UNDEFINED}"
+            + ".$WORKSPACE.${BUILD_TAG}.${JENKINS_URL}.${CHANGE_ID}";
+
+    @Param({"SHORT", "MEDIUM", "LONG"})
+    public String template;
+
+    private String format;
+    private Date projectStartDate;
+    private VersionNumberBuildInfo info;
+    private EnvVars env;
+    private Calendar buildDate;
+
+    @Setup
+    public void setUp() {
+        switch (template) {
+            case "SHORT":  format = SHORT; break;
+            case "MEDIUM": format = MEDIUM; break;
+            default:       format = LONG;
+        }
+        projectStartDate = VersionNumberCommon.parseDate("2019-04-01");
+        info = new VersionNumberBuildInfo(3, 12, 41, 517, 4711);
+        buildDate = Calendar.getInstance();
+        env = new EnvVars();
+        // Roughly what a build sees: the system environment plus the build's variables.
+        env.putAll(System.getenv());
+        env.put("VERSION_PREFIX", "4.2.");
+        env.put("BUILD_NUMBER", "4711");
+        env.put("BUILD_ID", "4711");
+        env.put("BUILD_TAG", "jenkins-folder-job-4711");
+        env.put("JOB_BASE_NAME", "job");
+        env.put("JOB_NAME", "folder/job");
+        env.put("NODE_NAME", "built-in");
+        env.put("EXECUTOR_NUMBER", "1");
+        env.put("WORKSPACE", "/var/jenkins_home/workspace/folder/job");
+        env.put("JENKINS_URL", "https://jenkins.example.com/");
+        env.put("GIT_BRANCH", "origin/feature/faster-version-numbers");
+        env.put("GIT_COMMIT", "3f1c2a9b8e7d6c5b4a3f2e1d0c9b8a7f6e5d4c3b");
+        env.put("CHANGE_ID", "1234");
+        for (int i = 0; i < 100; i++) {
+            env.put("PARAMETER_" + i, "value-" + i);
+        }
+    }
+
+    @Benchmark
+    public String format() {
+        return VersionNumberCommon.formatVersionNumber(format, projectStartDate, info, env, buildDate);
+    }
+
+    @Benchmark
+    public String expandStepByStep() {
+        return VersionNumberCommon.expandVersionNumber(format, projectStartDate, info, env, buildDate);
+    }
+}
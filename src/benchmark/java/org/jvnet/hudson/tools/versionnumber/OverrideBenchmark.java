@@ -0,0 +1,50 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import hudson.EnvVars;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Validation and resolution of the overrides of the counters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class OverrideBenchmark {
+
+    @Param({"", "42", "$BUILDS", "${BUILDS}", "${UNDEFINED}", "junk"})
+    public String override;
+
+    private EnvVars env;
+    private VersionNumberOverride parsed;
+
+    @Setup
+    public void setUp() {
+        env = new EnvVars();
+        env.put("BUILDS", "17");
+        parsed = VersionNumberOverride.parse(override);
+    }
+
+    @Benchmark
+    public Integer resolveOverride() {
+        return AbstractBuildNumberGenerator.resolveOverride(env, override);
+    }
+
+    /** What is left at build-time, with the override parsed when bound. */
+    @Benchmark
+    public Integer resolveParsed() {
+        return parsed.resolve(env);
+    }
+
+    @Benchmark
+    public String makeValid() {
+        return VersionNumberCommon.makeValid(override);
+    }
+}
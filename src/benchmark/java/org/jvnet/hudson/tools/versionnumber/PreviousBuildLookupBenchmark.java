@@ -0,0 +1,75 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import hudson.model.Result;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Looking up the previous build with a version-number in the
+ * {@link VersionNumberIndex} of a synthetic build history.
+ *
+ * <p>
+ * Only every n-th build has a version-number starting with the prefix looked
+ * up, as given by the hit rate. <code>scanForPrefix</code> is what a lookup costs
+ * when the prefix is not cached yet.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PreviousBuildLookupBenchmark {
+
+    private static final String PREFIX = "2.0.";
+
+    @Param({"10", "1000", "100000"})
+    public int builds;
+
+    @Param({"1", "0.01", "0"})
+    public double hitRate;
+
+    private NavigableMap<Integer, VersionNumberIndex.Entry> entries;
+    private VersionNumberIndex index;
+
+    @Setup
+    public void setUp() {
+        entries = new TreeMap<>();
+        int every = hitRate > 0 ? (int) Math.round(1 / hitRate) : 0;
+        long timestamp = System.currentTimeMillis() - builds * 60_000L;
+        for (int number = 1; number <= builds; number++) {
+            // Matching builds are spread evenly, starting with the oldest one.
+            String versionNumber = every > 0 && (number - 1) % every == 0 ? PREFIX + number : "1.0." + number;
+            entries.put(number, new VersionNumberIndex.Entry(number, timestamp + number * 60_000L, Result.SUCCESS,
+                    new VersionNumberBuildInfo(1, 1, 1, number, number), versionNumber, null));
+        }
+        index = new VersionNumberIndex(entries);
+    }
+
+    @Benchmark
+    public VersionNumberIndex.Entry getPrevious() {
+        return index.getPrevious(builds + 1, PREFIX);
+    }
+
+    @Benchmark
+    public VersionNumberIndex.Entry getPreviousWithoutPrefix() {
+        return index.getPrevious(builds + 1, null);
+    }
+
+    @Benchmark
+    public VersionNumberIndex.Entry getLatest() {
+        return index.getLatest(builds + 1, PREFIX);
+    }
+
+    @Benchmark
+    public int scanForPrefix() {
+        return VersionNumberIndex.findLatest(entries, PREFIX, Integer.MAX_VALUE, null);
+    }
+}
@@ -1,21 +1,23 @@
 package org.jvnet.hudson.tools.versionnumber;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 import hudson.EnvVars;
 import hudson.model.Result;
 import hudson.model.Run;
 
+/**
+ * @deprecated See {@link BuildNumberGenerator}.
+ */
+@Deprecated
 public abstract class AbstractBuildNumberGenerator implements BuildNumberGenerator {
-        
+
     @Override
     public int getNextNumber(Run build, EnvVars vars, Run prevBuild, Result worstResultForIncrement, String override) {
         int nextNumber = 1;
         
         // Attempt an override
-        if (override != null && isValidOverride(vars, override)) {
-            nextNumber = resolveOverride(vars, override);
+        Integer overrideValue = VersionNumberOverride.parse(override).resolve(vars);
+        if (overrideValue != null) {
+            nextNumber = overrideValue;
         // If no override, start from the previous build
         } else if (prevBuild != null) {
             int increment = 1;
@@ -61,32 +63,7 @@ public abstract class AbstractBuildNumberGenerator implements BuildNumberGenerat
      * does not result in a valid value.
      */
     public static Integer resolveOverride(EnvVars envVars, String override) {
-        Integer result = null;
-        Pattern pattern = Pattern.compile(VersionNumberCommon.ENV_VAR_PATTERN);
-
-        // Just in case someone directly edited the config-file with invalid values.
-        override = VersionNumberCommon.makeValid(override);
-
-        try {
-            if (!override.matches(VersionNumberCommon.ENV_VAR_PATTERN)) {
-                result = Integer.parseInt(override);
-                override = "";  // Reset!
-            } else {
-                Matcher m = pattern.matcher(override);
-                if (m.matches()) {
-                  String varName = (m.group(1) != null) ? m.group(1) : m.group(2);
-                  result = Integer.parseInt(envVars.get(varName));
-                }
-            }
-        } catch (Exception e) {
-            // Invalid value, so do not override!
-        }
-        
-        if (result == null || result < 0) {
-            result = null;
-        }
-
-        return result;
+        return VersionNumberOverride.parse(override).resolve(envVars);
     }
     
 }
@@ -4,6 +4,14 @@ import hudson.EnvVars;
 import hudson.model.Result;
 import hudson.model.Run;
 
+/**
+ * Computes a counter of a build from the previous build.
+ *
+ * @deprecated The counters are {@link VersionNumberCounter}s now, which plugins
+ *             can contribute as well. The implementations only compute the
+ *             built-in counters, the way they always did.
+ */
+@Deprecated
 public interface BuildNumberGenerator {
 
     int getNextNumber(Run build, EnvVars vars, Run prevBuild, Result worstResultForIncrement, String override);
@@ -2,19 +2,15 @@ package org.jvnet.hudson.tools.versionnumber;
 
 import hudson.model.Run;
 
+/**
+ * @deprecated <code>${BUILDS_ALL_TIME}</code> is one of the built-in {@link VersionNumberVariable}s now.
+ */
+@Deprecated
 public class BuildsAllTimeGenerator extends AbstractBuildNumberGenerator {
 
     @Override
     public int resolveValue(Run build, Run prevBuild, int increment) {
-        int nextNumber;
-        
-        // get the previous build version number information
-        VersionNumberBuildInfo info = getPreviousBuildInfo(prevBuild);
-
-        nextNumber = info.getBuildsAllTime() + increment;
-        
-        return nextNumber;
-        
+        return VersionNumberCounters.resolveValue(VersionNumberCounters.Counter.BUILDS_ALL_TIME, build, prevBuild, increment);
     }
 
 }
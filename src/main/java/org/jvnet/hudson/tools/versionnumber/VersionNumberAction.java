@@ -1,26 +1,115 @@
 package org.jvnet.hudson.tools.versionnumber;
 
-import hudson.model.Action;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
-public class VersionNumberAction implements Action {
+import com.thoughtworks.xstream.converters.ConversionException;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+
+/**
+ * The version-number of a build and the counters it was computed from.
+ *
+ * <p>
+ * It is persisted by {@link ConverterImpl} with all counters packed into a
+ * single element, which is only parsed once the counters are read.
+ * </p>
+ */
+public class VersionNumberAction implements RunAction2 {
     static final String ICON = "/plugin/versionnumber/vnicon_24x24.gif";
     
-    private VersionNumberBuildInfo info;
+    /** The counters; {@code null} until {@link #packedCounters} got parsed. */
+    private volatile VersionNumberBuildInfo info;
+    /** The counters as loaded from disk, see {@link VersionNumberBuildInfo#format()}. */
+    private String packedCounters;
     private String versionNumber;
+    /** The steps of computing the version-number, if the job asked for them. */
+    private List<String> trace;
+    /** All version-numbers by name, if several were formatted at once. */
+    private Map<String, String> outputs;
+    /** Identifies the pipeline step call which added this action, if any. */
+    private String key;
+
+    private transient Run<?, ?> run;
+
+    /** For {@link ConverterImpl}. */
+    private VersionNumberAction() {
+    }
     
     public VersionNumberAction(VersionNumberBuildInfo info, String versionNumber) {
+        this(info, versionNumber, null, null, null);
+    }
+
+    VersionNumberAction(VersionNumberBuildInfo info, String versionNumber, VersionNumberTrace trace) {
+        this(info, versionNumber, trace, null, null);
+    }
+
+    VersionNumberAction(VersionNumberBuildInfo info, String versionNumber, VersionNumberTrace trace,
+                        Map<String, String> outputs, String key) {
         this.info = info;
         this.versionNumber = versionNumber;
+        this.trace = (trace != null) ? trace.getLines() : null;
+        this.outputs = (outputs != null) ? new LinkedHashMap<>(outputs) : null;
+        this.key = key;
     }
     
     public VersionNumberBuildInfo getInfo() {
-        return info;
+        VersionNumberBuildInfo result = info;
+        if (result == null && packedCounters != null) {
+            result = VersionNumberBuildInfo.parse(packedCounters);
+            info = result;
+        }
+        return result;
+    }
+
+    /** Returns the build this action belongs to, if known yet. */
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> run) {
+        this.run = run;
     }
 
     public String getVersionNumber() {
         return this.versionNumber;
     }
 
+    /**
+     * Returns all version-numbers by name if several were formatted from the
+     * same counters, or an empty map.
+     */
+    public Map<String, String> getOutputs() {
+        return (outputs != null) ? Collections.unmodifiableMap(outputs) : Collections.<String, String>emptyMap();
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the steps of computing the version-number, or an empty list if
+     * they were not traced.
+     */
+    public List<String> getTrace() {
+        return (trace != null) ? Collections.unmodifiableList(trace) : Collections.<String>emptyList();
+    }
+
     public String getDisplayName() {
         return "Version " + this.versionNumber;
     }
@@ -30,8 +119,106 @@ public class VersionNumberAction implements Action {
     }
     
     public String getUrlName() {
-        return "versionnumber/displayName";
+        return "versionnumber";
+    }
+
+    /**
+     * Writes the counters as a single <code>&lt;counters&gt;</code> element
+     * instead of an <code>&lt;info&gt;</code> element with one element per
+     * counter, which older versions wrote and which is still read.
+     */
+    public static final class ConverterImpl implements Converter {
+
+        @Override
+        public boolean canConvert(Class type) {
+            return type == VersionNumberAction.class;
+        }
+
+        @Override
+        public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+            VersionNumberAction action = (VersionNumberAction) source;
+            VersionNumberBuildInfo info = action.info;
+            String packed = (info != null) ? info.format() : action.packedCounters;
+            writeValue(writer, "counters", packed);
+            writeValue(writer, "versionNumber", action.versionNumber);
+            if (action.trace != null) {
+                writer.startNode("trace");
+                context.convertAnother(action.trace);
+                writer.endNode();
+            }
+            if (action.outputs != null) {
+                writer.startNode("outputs");
+                context.convertAnother(action.outputs);
+                writer.endNode();
+            }
+            writeValue(writer, "key", action.key);
+        }
+
+        private static void writeValue(HierarchicalStreamWriter writer, String name, String value) {
+            if (value != null) {
+                writer.startNode(name);
+                writer.setValue(value);
+                writer.endNode();
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+            VersionNumberAction action = new VersionNumberAction();
+            while (reader.hasMoreChildren()) {
+                reader.moveDown();
+                switch (reader.getNodeName()) {
+                    case "counters":
+                        action.packedCounters = reader.getValue();
+                        break;
+                    case "info":
+                        action.info = readInfo(reader);
+                        break;
+                    case "versionNumber":
+                        action.versionNumber = reader.getValue();
+                        break;
+                    case "trace":
+                        action.trace = (List<String>) context.convertAnother(action, ArrayList.class);
+                        break;
+                    case "outputs":
+                        action.outputs = (Map<String, String>) context.convertAnother(action, LinkedHashMap.class);
+                        break;
+                    case "key":
+                        action.key = reader.getValue();
+                        break;
+                    default:
+                        // Written by a newer version, so just skip it.
+                }
+                reader.moveUp();
+            }
+            return action;
+        }
+
+        /** Reads the counters as written by older versions. */
+        private static VersionNumberBuildInfo readInfo(HierarchicalStreamReader reader) {
+            int[] values = new int[5];
+            while (reader.hasMoreChildren()) {
+                reader.moveDown();
+                int index;
+                switch (reader.getNodeName()) {
+                    case "buildsToday":     index = 0; break;
+                    case "buildsThisWeek":  index = 1; break;
+                    case "buildsThisMonth": index = 2; break;
+                    case "buildsThisYear":  index = 3; break;
+                    case "buildsAllTime":   index = 4; break;
+                    default:                index = -1;
+                }
+                if (index >= 0) {
+                    try {
+                        values[index] = Integer.parseInt(reader.getValue().trim());
+                    } catch (NumberFormatException e) {
+                        throw new ConversionException("Invalid value of " + reader.getNodeName(), e);
+                    }
+                }
+                reader.moveUp();
+            }
+            return new VersionNumberBuildInfo(values[0], values[1], values[2], values[3], values[4]);
+        }
     }
-    
-    
 }
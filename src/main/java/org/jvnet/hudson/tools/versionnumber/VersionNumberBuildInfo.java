@@ -1,36 +1,263 @@
 package org.jvnet.hudson.tools.versionnumber;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import org.jvnet.hudson.tools.versionnumber.VersionNumberCounters.Counter;
+
+/**
+ * The counters of a version-number.
+ *
+ * <p>
+ * Counters which the format-string does not use may be computed only when they
+ * are first read (see {@link VersionNumberCounters}). They are always computed
+ * before the info gets persisted, so the next build can continue from them.
+ * </p>
+ * <p>
+ * Every loaded build has one of these, so the counters are packed into a single
+ * <code>long</code> as long as they fit (up to 255 builds a day, 1023 a week,
+ * 4095 a month, 16383 a year and 1048575 of all time). The
+ * {@link VersionNumberIndex} keeps only that <code>long</code> per build (see
+ * {@link #getPacked()}) and creates infos from it when asked for.
+ * </p>
+ * <p>
+ * The values of the {@link VersionNumberCounter}s contributed by plugins are
+ * kept by name along with the built-in counters.
+ * </p>
+ */
 public class VersionNumberBuildInfo {
-    private int buildsToday;
-    private int buildsThisWeek;
-    private int buildsThisMonth;
-    private int buildsThisYear;
-    private int buildsAllTime;
-    
+
+    /** Bits per counter in {@link #packed}, in the order of {@link Counter}. */
+    private static final int[] BITS = {8, 10, 12, 14, 20};
+    private static final int[] SHIFT = new int[BITS.length];
+
+    static {
+        for (int i = 1; i < BITS.length; i++) {
+            SHIFT[i] = SHIFT[i - 1] + BITS[i - 1];
+        }
+    }
+
+    /** All counters, unless {@link #wide} is set. */
+    private long packed;
+    /** All counters, if any of them does not fit into {@link #packed}. */
+    private int[] wide;
+    /** The contributed counters by name, if any. */
+    private Map<String, Integer> custom;
+
+    /** Computes the remaining counters; {@code null} once all are computed. */
+    private transient volatile VersionNumberCounters.Pending pending;
+
     public VersionNumberBuildInfo(int buildsToday, int buildsThisWeek, int buildsThisMonth,
                                   int buildsThisYear, int buildsAllTime) {
         super();
-        this.buildsToday = buildsToday;
-        this.buildsThisWeek = buildsThisWeek;
-        this.buildsThisMonth = buildsThisMonth;
-        this.buildsThisYear = buildsThisYear;
-        this.buildsAllTime = buildsAllTime;
+        setAll(new int[] {buildsToday, buildsThisWeek, buildsThisMonth, buildsThisYear, buildsAllTime});
+    }
+
+    VersionNumberBuildInfo(int[] values, VersionNumberCounters.Pending pending) {
+        this(values[0], values[1], values[2], values[3], values[4]);
+        this.pending = pending;
+    }
+
+    private VersionNumberBuildInfo(long packed) {
+        this.packed = packed;
+    }
+
+    /**
+     * Returns the info of the given counters, as written by {@link #format()}.
+     *
+     * @throws IllegalArgumentException If the counters are malformed.
+     */
+    static VersionNumberBuildInfo parse(String counters) {
+        String[] parts = counters.split(";", -1);
+        String[] values = parts[0].split(",", -1);
+        if (values.length != BITS.length) {
+            throw new IllegalArgumentException("Invalid counters '" + counters + "'");
+        }
+        VersionNumberBuildInfo info = new VersionNumberBuildInfo(Integer.parseInt(values[0]), Integer.parseInt(values[1]),
+                                                                 Integer.parseInt(values[2]), Integer.parseInt(values[3]),
+                                                                 Integer.parseInt(values[4]));
+        for (int i = 1; i < parts.length; i++) {
+            int separator = parts[i].indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Invalid counters '" + counters + "'");
+            }
+            info.setCounter(parts[i].substring(0, separator), Integer.parseInt(parts[i].substring(separator + 1)));
+        }
+        return info;
+    }
+
+    /**
+     * Returns the info of counters packed by {@link #getPacked()}.
+     */
+    static VersionNumberBuildInfo ofPacked(long packed) {
+        if (packed < 0) {
+            throw new IllegalArgumentException("Not packed: " + packed);
+        }
+        return new VersionNumberBuildInfo(packed);
+    }
+
+    /**
+     * Returns all counters packed into a non-negative <code>long</code>, or
+     * {@code -1} if they do not fit or are not computed yet.
+     */
+    synchronized long getPacked() {
+        return (wide == null && pending == null && custom == null) ? packed : -1;
+    }
+
+    /**
+     * Returns the counters as <code>today,week,month,year,allTime</code>,
+     * followed by <code>;NAME=value</code> for every contributed counter.
+     */
+    String format() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(getBuildsToday()).append(',').append(getBuildsThisWeek()).append(',').append(getBuildsThisMonth())
+          .append(',').append(getBuildsThisYear()).append(',').append(getBuildsAllTime());
+        synchronized (this) {
+            if (custom != null) {
+                for (Map.Entry<String, Integer> counter : custom.entrySet()) {
+                    sb.append(';').append(counter.getKey()).append('=').append(counter.getValue());
+                }
+            }
+        }
+        return sb.toString();
     }
-    
+
     public int getBuildsToday() {
-        return buildsToday;
+        return get(Counter.BUILDS_TODAY);
     }
     public int getBuildsThisWeek() {
-        return buildsThisWeek;
+        return get(Counter.BUILDS_THIS_WEEK);
     }
     public int getBuildsThisMonth() {
-        return buildsThisMonth;
+        return get(Counter.BUILDS_THIS_MONTH);
     }
     public int getBuildsThisYear() {
-        return buildsThisYear;
+        return get(Counter.BUILDS_THIS_YEAR);
     }
     public int getBuildsAllTime() {
-        return buildsAllTime;
+        return get(Counter.BUILDS_ALL_TIME);
+    }
+
+    /**
+     * Returns the value of the counter with the given name, a built-in one
+     * like <code>BUILDS_TODAY</code> or one contributed as
+     * {@link VersionNumberCounter}.
+     *
+     * @return The value or {@code null} if the build has no such counter.
+     */
+    @CheckForNull
+    public Integer getCounter(@NonNull String name) {
+        for (Counter counter : Counter.values()) {
+            if (counter.name().equals(name)) {
+                return get(counter);
+            }
+        }
+        synchronized (this) {
+            return custom != null ? custom.get(name) : null;
+        }
+    }
+
+    synchronized void setCounter(@NonNull String name, int value) {
+        if (custom == null) {
+            custom = new TreeMap<>();
+        }
+        custom.put(name, value);
+    }
+
+    /** Returns whether all counters are computed. */
+    boolean isComputed() {
+        return pending == null;
+    }
+
+    /** Computes all counters not computed yet. */
+    synchronized void computeAll() {
+        VersionNumberCounters.Pending p = pending;
+        if (p != null) {
+            p.computeTo(this);
+            pending = null;
+        }
+    }
+
+    synchronized void set(Counter counter, int value) {
+        int[] values = getAll();
+        values[counter.ordinal()] = value;
+        setAll(values);
+    }
+
+    private int get(Counter counter) {
+        VersionNumberCounters.Pending p = pending;
+        if (p != null && p.isDeferred(counter)) {
+            computeAll();
+        }
+        return getRaw(counter.ordinal());
+    }
+
+    private synchronized int getRaw(int i) {
+        if (wide != null) {
+            return wide[i];
+        }
+        return (int) ((packed >>> SHIFT[i]) & ((1L << BITS[i]) - 1));
+    }
+
+    private int[] getAll() {
+        int[] values = new int[BITS.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = getRaw(i);
+        }
+        return values;
+    }
+
+    private void setAll(int[] values) {
+        long result = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] < 0 || values[i] >= (1L << BITS[i])) {
+                packed = 0;
+                wide = values;
+                return;
+            }
+            result |= (long) values[i] << SHIFT[i];
+        }
+        packed = result;
+        wide = null;
+    }
+
+    /** Infos are equal if all their counters are. */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof VersionNumberBuildInfo)) {
+            return false;
+        }
+        VersionNumberBuildInfo other = (VersionNumberBuildInfo) obj;
+        computeAll();
+        other.computeAll();
+        return Arrays.equals(getAll(), other.getAll()) && Objects.equals(getContributed(), other.getContributed());
+    }
+
+    @Override
+    public int hashCode() {
+        computeAll();
+        return Arrays.hashCode(getAll()) * 31 + Objects.hashCode(getContributed());
+    }
+
+    /** Returns the contributed counters by name, or {@code null} if there are none. */
+    @CheckForNull
+    synchronized Map<String, Integer> getContributed() {
+        return custom != null ? Collections.unmodifiableMap(new TreeMap<>(custom)) : null;
+    }
+
+    /** XStream persists the fields, so they all have to be computed by then. */
+    private Object writeReplace() {
+        computeAll();
+        return this;
     }
 
 }
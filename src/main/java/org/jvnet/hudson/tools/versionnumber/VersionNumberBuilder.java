@@ -1,16 +1,19 @@
 package org.jvnet.hudson.tools.versionnumber;
 
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.locks.Lock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.lang.invoke.MethodHandles;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest2;
 
@@ -29,6 +32,8 @@ import hudson.util.ListBoxModel;
 import hudson.util.FormValidation;
 import net.sf.json.JSONObject;
 
+import org.jvnet.hudson.tools.versionnumber.VersionNumberCounters.Counter;
+
 /**
  * Sample {@link Builder}.
  *
@@ -69,11 +74,27 @@ public class VersionNumberBuilder extends BuildWrapper {
     private String oBuildsThisMonth;
     private String oBuildsThisYear;
     private String oBuildsAllTime;
+
+    /** The overrides above, parsed, in the order of {@link Counter}. */
+    private transient VersionNumberOverride[] overrides;
+
+    /**
+     * Whether this configuration was submitted (e.g. from the job configuration
+     * page) rather than read from the <code>config.xml</code>, so its overrides
+     * were entered anew.
+     */
+    private transient boolean submitted;
     
     private String  worstResultForIncrement = null;
     @Deprecated
     private boolean skipFailedBuilds = false;
     private boolean useAsBuildDisplayName; 
+    private boolean traceExpansion;
+    private String timeZone;
+    private String weekRule;
+
+    /** The time zone and week rule, parsed. */
+    private transient VersionNumberPeriods periods = VersionNumberPeriods.DEFAULT;
     
     public VersionNumberBuilder(String versionNumberString,
             String projectStartDate,
@@ -129,11 +150,58 @@ public class VersionNumberBuilder extends BuildWrapper {
         this.worstResultForIncrement = worstResultForIncrement;
         this.useAsBuildDisplayName = useAsBuildDisplayName;
         
-        this.oBuildsToday = VersionNumberCommon.makeValid(buildsToday);
-        this.oBuildsThisWeek = VersionNumberCommon.makeValid(buildsThisWeek);
-        this.oBuildsThisMonth = VersionNumberCommon.makeValid(buildsThisMonth);
-        this.oBuildsThisYear = VersionNumberCommon.makeValid(buildsThisYear);
-        this.oBuildsAllTime = VersionNumberCommon.makeValid(buildsAllTime);
+        this.oBuildsToday = buildsToday;
+        this.oBuildsThisWeek = buildsThisWeek;
+        this.oBuildsThisMonth = buildsThisMonth;
+        this.oBuildsThisYear = buildsThisYear;
+        this.oBuildsAllTime = buildsAllTime;
+        this.submitted = true;
+        parseOverrides();
+    }
+
+    private Object readResolve() {
+        // Just in case someone directly edited the config-file with invalid values.
+        parseOverrides();
+        try {
+            periods = VersionNumberPeriods.of(timeZone, weekRule);
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Counting builds in the default time zone and weeks instead", e);
+            periods = VersionNumberPeriods.DEFAULT;
+        }
+        return this;
+    }
+
+    /**
+     * Parses the overrides once, so builds only have to resolve them.
+     */
+    private void parseOverrides() {
+        overrides = new VersionNumberOverride[Counter.values().length];
+        setOverride(Counter.BUILDS_TODAY, VersionNumberOverride.parse(oBuildsToday));
+        setOverride(Counter.BUILDS_THIS_WEEK, VersionNumberOverride.parse(oBuildsThisWeek));
+        setOverride(Counter.BUILDS_THIS_MONTH, VersionNumberOverride.parse(oBuildsThisMonth));
+        setOverride(Counter.BUILDS_THIS_YEAR, VersionNumberOverride.parse(oBuildsThisYear));
+        setOverride(Counter.BUILDS_ALL_TIME, VersionNumberOverride.parse(oBuildsAllTime));
+    }
+
+    /** Returns whether the configuration was submitted rather than read from disk. */
+    boolean isSubmitted() {
+        return submitted;
+    }
+
+    /** Returns the override of the given counter, parsed. */
+    VersionNumberOverride getOverride(Counter counter) {
+        return overrides[counter.ordinal()];
+    }
+
+    private void setOverride(Counter counter, VersionNumberOverride override) {
+        overrides[counter.ordinal()] = override;
+        switch (counter) {
+            case BUILDS_TODAY:      oBuildsToday = override.toString(); break;
+            case BUILDS_THIS_WEEK:  oBuildsThisWeek = override.toString(); break;
+            case BUILDS_THIS_MONTH: oBuildsThisMonth = override.toString(); break;
+            case BUILDS_THIS_YEAR:  oBuildsThisYear = override.toString(); break;
+            default:                oBuildsAllTime = override.toString(); break;
+        }
     }
     
     public String getBuildsToday() {
@@ -186,6 +254,49 @@ public class VersionNumberBuilder extends BuildWrapper {
     public boolean getUseAsBuildDisplayName() {
         return this.useAsBuildDisplayName;
     }
+
+    public boolean isTraceExpansion() {
+        return this.traceExpansion;
+    }
+
+    /**
+     * Whether to keep the steps of computing the version-number with the build.
+     */
+    @DataBoundSetter
+    public void setTraceExpansion(boolean traceExpansion) {
+        this.traceExpansion = traceExpansion;
+    }
+
+    public String getTimeZone() {
+        return this.timeZone;
+    }
+
+    /**
+     * Sets the time zone which days, weeks, months and years are counted in;
+     * empty for the one of the controller.
+     *
+     * @throws IllegalArgumentException If the time zone is unknown.
+     */
+    @DataBoundSetter
+    public void setTimeZone(String timeZone) {
+        this.periods = VersionNumberPeriods.of(timeZone, this.weekRule);
+        this.timeZone = timeZone;
+    }
+
+    public String getWeekRule() {
+        return this.weekRule;
+    }
+
+    /**
+     * Sets how the days are grouped into weeks, see {@link VersionNumberPeriods.WeekRule}.
+     *
+     * @throws IllegalArgumentException If the week rule is unknown.
+     */
+    @DataBoundSetter
+    public void setWeekRule(String weekRule) {
+        this.periods = VersionNumberPeriods.of(this.timeZone, weekRule);
+        this.weekRule = weekRule;
+    }
         
     /**
      * We'll use this from the <code>config.jelly</code>.
@@ -195,8 +306,7 @@ public class VersionNumberBuilder extends BuildWrapper {
     }
     
     public String getProjectStartDate() {
-        final DateFormat defaultDateFormat = new SimpleDateFormat(VersionNumberCommon.DEFAULT_DATE_FORMAT_PATTERN);
-        return defaultDateFormat.format(projectStartDate);
+        return VersionNumberDateFormat.format(VersionNumberCommon.DEFAULT_DATE_FORMAT_PATTERN, projectStartDate, TimeZone.getDefault());
     }
     public String getEnvironmentVariableName() {
         return this.environmentVariableName;
@@ -204,106 +314,51 @@ public class VersionNumberBuilder extends BuildWrapper {
     public String getEnvironmentPrefixVariable() {
         return this.environmentPrefixVariable;
     }
-    private Run getPreviousBuildWithVersionNumber(Run build, BuildListener listener) {
-        String envPrefix;
-        
+    private static EnvVars getEnvironment(Run build, BuildListener listener) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        EnvVars env = build.getEnvironment(listener);
+        VersionNumberMetrics.record(VersionNumberMetrics.Stage.ENVIRONMENT, start);
+        return env;
+    }
+
+    private String getEnvironmentPrefix(EnvVars env) {
         if (this.environmentPrefixVariable != null) {
-            try {
-                EnvVars env = build.getEnvironment(listener);
-                
-                envPrefix = env.get(this.environmentPrefixVariable);
-            } catch (IOException e) {
-                envPrefix = null;
-            } catch (InterruptedException e) {
-                envPrefix = null;
-            }
-        } else {
-            envPrefix = null;
+            return env.get(this.environmentPrefixVariable);
         }
-
-        return VersionNumberCommon.getPreviousBuildWithVersionNumber(build, envPrefix);
+        return null;
     }
-    
+
     @SuppressWarnings("unchecked")
-    private VersionNumberBuildInfo incBuild(Run build, BuildListener listener) throws IOException, InterruptedException {
-        EnvVars enVars = build.getEnvironment(listener);
-        Run prevBuild = getPreviousBuildWithVersionNumber(build, listener);
-        VersionNumberBuildInfo incBuildInfo = VersionNumberCommon.incBuild(build, enVars, prevBuild,
-                this.getWorstResultForIncrement(),
-                this.oBuildsToday,
-                this.oBuildsThisWeek,
-                this.oBuildsThisMonth,
-                this.oBuildsThisYear,
-                this.oBuildsAllTime);
-        
-        // have we overridden any of the version number info?  If so, set it up here
-        boolean saveOverrides = false;
-        
-        if (this.oBuildsToday == null || !this.oBuildsToday.equals("")) {
-            saveOverrides = true;  // Always need to save if not empty!
-            // Just in case someone directly edited the config-file with invalid values.
-            oBuildsToday = VersionNumberCommon.makeValid(oBuildsToday);
-            try {
-                if (!oBuildsToday.matches(VersionNumberCommon.ENV_VAR_PATTERN)) {
-                    oBuildsToday = "";  // Reset!
-                }
-            } catch (Exception e) {
-                // Invalid value, so do not override!
-            }
-        }
-        
-        if (this.oBuildsThisWeek == null || !this.oBuildsThisWeek.equals("")) {
-            saveOverrides = true;  // Always need to save if not empty!
-            // Just in case someone directly edited the config-file with invalid values.
-            oBuildsThisWeek = VersionNumberCommon.makeValid(oBuildsThisWeek);
-            try {
-                if (!oBuildsThisWeek.matches(VersionNumberCommon.ENV_VAR_PATTERN)) {
-                    oBuildsThisWeek = "";  // Reset!
-                }
-            } catch (Exception e) {
-                // Invalid value, so do not override!
-            }
-        }
-        if (this.oBuildsThisMonth == null || !this.oBuildsThisMonth.equals("")) {
-            saveOverrides = true;  // Always need to save if not empty!
-            // Just in case someone directly edited the config-file with invalid values.
-            oBuildsThisMonth = VersionNumberCommon.makeValid(oBuildsThisMonth);
-            try {
-                if (!oBuildsThisMonth.matches(VersionNumberCommon.ENV_VAR_PATTERN)) {
-                    oBuildsThisMonth = "";  // Reset!
-                }
-            } catch (Exception e) {
-                // Invalid value, so do not override!
-            }
-        }
-        if (this.oBuildsThisYear == null || !this.oBuildsThisYear.equals("")) {
-            saveOverrides = true;  // Always need to save if not empty!
-            // Just in case someone directly edited the config-file with invalid values.
-            oBuildsThisYear = VersionNumberCommon.makeValid(oBuildsThisYear);
-            try {
-                if (!oBuildsThisYear.matches(VersionNumberCommon.ENV_VAR_PATTERN)) {
-                    oBuildsThisYear = "";  // Reset!
-                }
-            } catch (Exception e) {
-                // Invalid value, so do not override!
-            }
+    private VersionNumberBuildInfo incBuild(Run build, EnvVars enVars, String envPrefix, VersionNumberTrace trace) {
+        VersionNumberIndex.Entry previous = VersionNumberCommon.getPreviousEntry(build, envPrefix, trace);
+
+        // Literal overrides apply to a single build. Skip those a previous build
+        // used already, e.g. before a restart reloaded them from the config.xml.
+        VersionNumberOverrides record = VersionNumberOverrides.of(build.getParent());
+        VersionNumberOverride[] pending = new VersionNumberOverride[overrides.length];
+        for (Counter counter : Counter.values()) {
+            pending[counter.ordinal()] = record.pending(counter, overrides[counter.ordinal()]);
         }
+
+        VersionNumberBuildInfo incBuildInfo = VersionNumberCommon.incBuild(
+                VersionNumberTemplate.of(this.versionNumberString).getCounters(), build, enVars, previous,
+                this.getWorstResultForIncrement(), periods, pending);
         
-        if (this.oBuildsAllTime == null || !this.oBuildsAllTime.equals("")) {
-            saveOverrides = true;  // Always need to save if not empty!
-            oBuildsAllTime = VersionNumberCommon.makeValid(oBuildsAllTime);
-            try {
-                if (!oBuildsAllTime.matches(VersionNumberCommon.ENV_VAR_PATTERN)) {
-                    oBuildsAllTime = "";  // Reset!
+        // Reset the literal overrides we have used, and remember we did so
+        // without saving the job configuration.
+        Map<Counter, String> used = new EnumMap<>(Counter.class);
+        for (Counter counter : Counter.values()) {
+            if (overrides[counter.ordinal()].isLiteral()) {
+                if (pending[counter.ordinal()].isLiteral()) {
+                    used.put(counter, pending[counter.ordinal()].toString());
                 }
-            } catch (Exception e) {
-                // Invalid value, so do not override!
+                setOverride(counter, VersionNumberOverride.NONE);
             }
         }
-        
-        // if we've used any of the overrides, reset them in the project
-        if (saveOverrides) {
-            build.getParent().save();
+        if (!used.isEmpty()) {
+            long start = System.nanoTime();
+            record.markUsed(used);
+            VersionNumberMetrics.record(VersionNumberMetrics.Stage.SAVE, start);
         }
         return incBuildInfo;
     }
@@ -311,24 +366,47 @@ public class VersionNumberBuilder extends BuildWrapper {
     @SuppressWarnings("unchecked") @Override
     public Environment setUp(AbstractBuild build, Launcher launcher, BuildListener listener) {
         String formattedVersionNumber = "";
+        long start = System.nanoTime();
+        Lock lock = VersionNumberCommon.getAllocationLock(build.getParent());
         try {
-            VersionNumberBuildInfo info = incBuild(build, listener);
-            formattedVersionNumber = VersionNumberCommon.formatVersionNumber(this.versionNumberString,
-                                                         this.projectStartDate,
-                                                         info,
-                                                         build.getEnvironment(listener),
-                                                         build.getTimestamp());
-            build.addAction(new VersionNumberAction(info, formattedVersionNumber));
+            // Environment contributors may be slow, so run them once for the
+            // lookup, the overrides and the formatting, and before waiting for
+            // other builds of the job.
+            EnvVars enVars = getEnvironment(build, listener);
+            String envPrefix = getEnvironmentPrefix(enVars);
+            long lockStart = System.nanoTime();
+            lock.lockInterruptibly();
+            VersionNumberMetrics.record(VersionNumberMetrics.Stage.LOCK, lockStart);
+            try {
+                VersionNumberTrace trace = traceExpansion
+                        ? new VersionNumberTrace(enVars, VersionNumberTrace.getSensitiveVariables(build)) : null;
+                VersionNumberBuildInfo info = incBuild(build, enVars, envPrefix, trace);
+                formattedVersionNumber = VersionNumberCommon.formatVersionNumber(this.versionNumberString,
+                                                             this.projectStartDate,
+                                                             info,
+                                                             enVars,
+                                                             periods.getCalendar(build.getTimeInMillis()),
+                                                             trace);
+                VersionNumberReverseIndex.checkDuplicates(build, formattedVersionNumber, listener, trace);
+                build.addAction(new VersionNumberAction(info, formattedVersionNumber, trace));
+                VersionNumberIndex.of(build.getParent()).record(build, envPrefix);
+            } finally {
+                lock.unlock();
+            }
+            VersionNumberMetrics.record(VersionNumberMetrics.Stage.TOTAL, start);
             if (useAsBuildDisplayName) {
                 build.setDisplayName(formattedVersionNumber);
             }
         } catch (IOException e) {
+            VersionNumberMetrics.recordFailure();
             e.printStackTrace(listener.error(e.toString()));
             build.setResult(Result.FAILURE);
         } catch (InterruptedException e) {
+            VersionNumberMetrics.recordFailure();
             e.printStackTrace(listener.error(e.toString()));
             build.setResult(Result.FAILURE);
         } catch (Exception e) {
+            VersionNumberMetrics.recordFailure();
             e.printStackTrace(listener.error(e.toString()));
             build.setResult(Result.FAILURE);
         }
@@ -402,6 +480,28 @@ public class VersionNumberBuilder extends BuildWrapper {
             }
         }
 
+        /**
+         * Performs on-the-fly validation of the form field 'timeZone'.
+         *
+         * @param value
+         *      This receives the current value of the field.
+         */
+        public FormValidation doCheckTimeZone(@QueryParameter final String value) {
+            try {
+                VersionNumberPeriods.of(value, null);
+                return FormValidation.ok();
+            } catch (IllegalArgumentException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+
+        public ListBoxModel doFillWeekRuleItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("Locale of the controller, restarting with the year", VersionNumberPeriods.WeekRule.LOCALE.name());
+            items.add("ISO-8601, starting on Monday", VersionNumberPeriods.WeekRule.ISO.name());
+            return items;
+        }
+
         public ListBoxModel doFillWorstResultForIncrementItems() {
             ListBoxModel items = new ListBoxModel();
             items.add(VersionNumberCommon.WORST_RESULT_SUCCESS);
@@ -1,14 +1,18 @@
 package org.jvnet.hudson.tools.versionnumber;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.lang.invoke.MethodHandles;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+
 import hudson.EnvVars;
+import hudson.model.Job;
 import hudson.model.Result;
 import hudson.model.Run;
 
@@ -30,57 +34,173 @@ public class VersionNumberCommon {
 
     // Pattern:   ${VAR_NAME} or $VAR_NAME
     public static final String ENV_VAR_PATTERN = "^(?:\\$\\{(\\w+)\\})|(?:\\$(\\w+))$";
+
+    /**
+     * Locks serializing the allocation of version-numbers, striped by job so
+     * concurrent builds of different jobs do not wait for each other.
+     */
+    private static final Lock[] ALLOCATION_LOCKS = new Lock[64];
+
+    static {
+        for (int i = 0; i < ALLOCATION_LOCKS.length; i++) {
+            ALLOCATION_LOCKS[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Returns the lock which has to be held from looking up the previous build
+     * (see {@link #getPreviousBuildWithVersionNumber(Run, String)}) until the new
+     * version-number is recorded in the {@link VersionNumberIndex}, so concurrent
+     * builds of the job never get the same numbers.
+     *
+     * <p>
+     * The lock is per job rather than per prefix, since a version-number can start
+     * with more than one prefix in use.
+     * </p>
+     */
+    public static Lock getAllocationLock(Job<?, ?> job) {
+        return ALLOCATION_LOCKS[(job.getFullName().hashCode() & Integer.MAX_VALUE) % ALLOCATION_LOCKS.length];
+    }
     
     public static VersionNumberBuildInfo incBuild(Run build, EnvVars vars,
             Run prevBuild, Result worstResultForIncrement, String overrideBuildsToday, String overrideBuildsThisWeek,
             String overrideBuildsThisMonth, String overrideBuildsThisYear, String overrideBuildsAllTime) {
-       
-        int buildsToday = new BuildsTodayGenerator().getNextNumber(build, vars, prevBuild, worstResultForIncrement, overrideBuildsToday);
-        int buildsThisWeek = new BuildsThisWeekGenerator().getNextNumber(build, vars, prevBuild, worstResultForIncrement, overrideBuildsThisWeek);
-        int buildsThisMonth = new BuildsThisMonthGenerator().getNextNumber(build, vars, prevBuild, worstResultForIncrement, overrideBuildsThisMonth);
-        int buildsThisYear = new BuildsThisYearGenerator().getNextNumber(build, vars, prevBuild, worstResultForIncrement, overrideBuildsThisYear);
-        int buildsAllTime = new BuildsAllTimeGenerator().getNextNumber(build, vars, prevBuild, worstResultForIncrement, overrideBuildsAllTime);
-                
-        return new VersionNumberBuildInfo(buildsToday, buildsThisWeek, buildsThisMonth, buildsThisYear, buildsAllTime);
+        VersionNumberIndex.Entry previous = prevBuild != null
+                ? VersionNumberIndex.Entry.of(prevBuild, (VersionNumberAction) prevBuild.getAction(VersionNumberAction.class))
+                : null;
+        return incBuild(VersionNumberCounters.ALL, build, vars, previous, worstResultForIncrement,
+                VersionNumberPeriods.DEFAULT, VersionNumberOverride.parse(overrideBuildsToday), VersionNumberOverride.parse(overrideBuildsThisWeek),
+                VersionNumberOverride.parse(overrideBuildsThisMonth), VersionNumberOverride.parse(overrideBuildsThisYear),
+                VersionNumberOverride.parse(overrideBuildsAllTime));
     }
-    
-    public static Run getPreviousBuildWithVersionNumber(Run build, String envPrefix) {        
-        // a build that fails early will not have a VersionNumberAction attached
-        Run prevBuild = build.getPreviousBuild();
-        
-        while (prevBuild != null) {
-            VersionNumberAction prevAction = (VersionNumberAction)prevBuild.getAction(VersionNumberAction.class);
 
-            if (prevAction == null) 
-                LOGGER.fine("prevAction.getVersionNumber() : 'null'");
-            else
-                LOGGER.fine("prevAction.getVersionNumber() : '" + prevAction.getVersionNumber() + "'");
-            
-            if (prevAction != null) {
-                if (envPrefix != null) {
-                    String version = prevAction.getVersionNumber();
+    /**
+     * Like {@link #incBuild(Run, EnvVars, Run, Result, String, String, String, String, String)},
+     * but with the previous build as found by {@link #getPreviousEntry(Run, String, VersionNumberTrace)},
+     * the overrides already parsed, and only computing the given counters
+     * right away. The others get computed once read.
+     *
+     * @param counters The counters needed right away, as bit mask of
+     *                 {@link VersionNumberTemplate#getCounters()}.
+     * @param periods Which day, week, ... the builds fall into.
+     * @param overrides The overrides of the counters, in the order of
+     *                  {@link VersionNumberCounters.Counter}.
+     */
+    static VersionNumberBuildInfo incBuild(int counters, Run build, EnvVars vars,
+            @CheckForNull VersionNumberIndex.Entry previous, Result worstResultForIncrement, VersionNumberPeriods periods,
+            VersionNumberOverride... overrides) {
+        long start = System.nanoTime();
+        VersionNumberBuildInfo info = VersionNumberCounters.next(build, vars, previous, worstResultForIncrement,
+                periods, counters, overrides);
+        VersionNumberMetrics.record(VersionNumberMetrics.Stage.COUNTERS, start);
+        return info;
+    }
     
-                    if (version.startsWith(envPrefix)) {
-                        LOGGER.info("Previous build's version-number: '" + prevAction.getVersionNumber() + "'");
-                        return prevBuild;
-                    }
-                } else {
-                    LOGGER.info("Previous build's version-number: '" + prevAction.getVersionNumber() + "'");
-                    return prevBuild;
+    public static Run getPreviousBuildWithVersionNumber(Run build, String envPrefix) {
+        VersionNumberIndex.Entry previous = getPreviousEntry(build, envPrefix, null);
+        return previous != null ? build.getParent().getBuildByNumber(previous.getNumber()) : null;
+    }
+
+    /**
+     * Returns what the next build needs to know about the previous build with
+     * a version-number.
+     *
+     * <p>
+     * A completed build is known well enough by its entry in the
+     * {@link VersionNumberIndex}, which keeps the latest one per prefix at hand,
+     * so it is not loaded at all. Only a build which was still running when it
+     * was last recorded is loaded, for its current result.
+     * </p>
+     *
+     * @return The entry of the previous build, or {@code null} if there is none.
+     */
+    @CheckForNull
+    static VersionNumberIndex.Entry getPreviousEntry(Run build, String envPrefix, @CheckForNull VersionNumberTrace trace) {
+        // a build that fails early will not have a VersionNumberAction attached,
+        // so ask the index of the job instead of walking the build history.
+        // With concurrent builds a newer build may already have its version-number,
+        // so the latest allocation counts, not the build number.
+        long start = System.nanoTime();
+        Job<?, ?> job = build.getParent();
+        VersionNumberIndex index = VersionNumberIndex.of(job);
+        if (!index.loadJournal()) {
+            // The index is still being loaded after a restart, or would have to
+            // be rebuilt from the build history. Rather than doing that while
+            // holding the allocation lock, walk the build history until the
+            // previous build and leave the index to the background.
+            VersionNumberIndexWarmUp.load(index);
+            return walkPreviousBuilds(build, envPrefix, trace, start);
+        }
+        VersionNumberIndex.Entry entry = index.getLatest(build.getNumber(), envPrefix);
+        int visited = 0;
+        int stale = 0;
+
+        while (entry != null) {
+            if (!entry.isComplete()) {
+                Run prevBuild = job.getBuildByNumber(entry.getNumber());
+                visited++;
+                VersionNumberAction prevAction = prevBuild != null
+                        ? (VersionNumberAction) prevBuild.getAction(VersionNumberAction.class) : null;
+                if (prevAction == null) {
+                    // The build is gone (or was changed) without the index noticing.
+                    LOGGER.log(Level.FINE, "Dropping stale entry of build #{0} from version-number index", entry.getNumber());
+                    index.remove(entry.getNumber());
+                    stale++;
+                    entry = index.getLatest(build.getNumber(), envPrefix);
+                    continue;
                 }
+                entry = VersionNumberIndex.Entry.of(prevBuild, prevAction);
             }
-            
-            prevBuild = prevBuild.getPreviousBuild();
+            if (trace != null) {
+                trace.add("Previous build's version-number: #" + entry.getNumber() + " '" + entry.getVersionNumber() + "'");
+            }
+            VersionNumberMetrics.recordLookup(visited, stale);
+            VersionNumberMetrics.record(VersionNumberMetrics.Stage.LOOKUP, start);
+            return entry;
         }
         
-        LOGGER.info("Previous build's version-number: N/A");
+        if (trace != null) {
+            trace.add("Previous build's version-number: N/A");
+        }
+        VersionNumberMetrics.recordLookup(visited, stale);
+        VersionNumberMetrics.record(VersionNumberMetrics.Stage.LOOKUP, start);
         return null;
     }
+
+    /**
+     * Finds the previous build with a version-number by following
+     * {@link Run#getPreviousBuild()}, the way it was done before the
+     * {@link VersionNumberIndex}.
+     */
+    @CheckForNull
+    private static VersionNumberIndex.Entry walkPreviousBuilds(Run build, String envPrefix,
+            @CheckForNull VersionNumberTrace trace, long start) {
+        int visited = 0;
+        VersionNumberIndex.Entry entry = null;
+        Run prevBuild = build.getPreviousBuild();
+        while (prevBuild != null) {
+            visited++;
+            VersionNumberAction prevAction = (VersionNumberAction) prevBuild.getAction(VersionNumberAction.class);
+            if (prevAction != null && (envPrefix == null || prevAction.getVersionNumber().startsWith(envPrefix))) {
+                entry = VersionNumberIndex.Entry.of(prevBuild, prevAction);
+                break;
+            }
+            prevBuild = prevBuild.getPreviousBuild();
+        }
+        if (trace != null) {
+            trace.add("Version-number index not loaded yet, walked " + visited + " previous builds");
+            trace.add("Previous build's version-number: " + (entry != null
+                    ? "#" + entry.getNumber() + " '" + entry.getVersionNumber() + "'"
+                    : "N/A"));
+        }
+        VersionNumberMetrics.recordLookup(visited, 0);
+        VersionNumberMetrics.record(VersionNumberMetrics.Stage.LOOKUP, start);
+        return entry;
+    }
     
     public static Date parseDate(String dateString) {
         try {
-            final DateFormat defaultDateFormat = new SimpleDateFormat(DEFAULT_DATE_FORMAT_PATTERN);
-            return defaultDateFormat.parse(dateString);
+            return VersionNumberDateFormat.parse(DEFAULT_DATE_FORMAT_PATTERN, dateString);
         } catch (Exception e) {
             return new Date(0);
         }
@@ -91,10 +211,68 @@ public class VersionNumberCommon {
                                              VersionNumberBuildInfo info,
                                              Map<String, String> enVars,
                                              Calendar buildDate) {
-        LOGGER.info("Version-number format-string before expansion of env-variables: '" + versionNumberFormatString + "'");
+        return formatVersionNumber(versionNumberFormatString, projectStartDate, info, enVars, buildDate, null);
+    }
+
+    /**
+     * Formats the version-number, recording each step of the expansion in the
+     * given trace, if any.
+     */
+    static String formatVersionNumber(String versionNumberFormatString,
+                                      Date projectStartDate,
+                                      VersionNumberBuildInfo info,
+                                      Map<String, String> enVars,
+                                      Calendar buildDate,
+                                      @CheckForNull VersionNumberTrace trace) {
+        long start = System.nanoTime();
+        String vnf;
+        if (trace == null) {
+            vnf = VersionNumberTemplate.of(versionNumberFormatString).render(projectStartDate, info, enVars, buildDate);
+            if (vnf == null) {
+                // Values of variables might form new blocks, so expand step by step.
+                vnf = expandVersionNumber(versionNumberFormatString, projectStartDate, info, enVars, buildDate, null);
+            }
+        } else {
+            // Only the step by step expansion has steps worth tracing.
+            trace.add("Counters: today=" + info.getBuildsToday() + ", thisWeek=" + info.getBuildsThisWeek()
+                    + ", thisMonth=" + info.getBuildsThisMonth() + ", thisYear=" + info.getBuildsThisYear()
+                    + ", allTime=" + info.getBuildsAllTime());
+            trace.add("Version-number format-string before expansion of env-variables: '" + versionNumberFormatString + "'");
+            vnf = expandVersionNumber(versionNumberFormatString, projectStartDate, info, enVars, buildDate, trace);
+            trace.add("Version-number format-string after expansion of all variables: '" + vnf + "'");
+        }
+        VersionNumberMetrics.record(VersionNumberMetrics.Stage.FORMAT, start);
+        return vnf;
+    }
+
+    /**
+     * Expands the format-string by replacing one block after the other, rescanning
+     * the whole string after each replacement. This defines the semantics of the
+     * format-string; {@link VersionNumberTemplate} is a faster way to get the same.
+     */
+    static String expandVersionNumber(String versionNumberFormatString,
+                                      Date projectStartDate,
+                                      VersionNumberBuildInfo info,
+                                      Map<String, String> enVars,
+                                      Calendar buildDate) {
+        return expandVersionNumber(versionNumberFormatString, projectStartDate, info, enVars, buildDate, null);
+    }
+
+    private static String expandVersionNumber(String versionNumberFormatString,
+                                              Date projectStartDate,
+                                              VersionNumberBuildInfo info,
+                                              Map<String, String> enVars,
+                                              Calendar buildDate,
+                                              @CheckForNull VersionNumberTrace trace) {
         // Expand all environment-variables in the format-string.
-        String vnf = new EnvVars(enVars).expand(versionNumberFormatString);
-        LOGGER.info("Version-number format-string after expansion of env-variables: '" + vnf + "'");
+        VersionNumberEnvironment env = VersionNumberEnvironment.of(enVars);
+        VersionNumberEnvironment.Expansion expansion = new VersionNumberEnvironment.Expansion();
+        VersionNumberVariables variables = VersionNumberVariables.get();
+        VersionNumberVariable.Context context = new VersionNumberVariable.Context(projectStartDate, info, buildDate);
+        String vnf = env.expand(versionNumberFormatString);
+        if (trace != null) {
+            trace.add("Version-number format-string after expansion of env-variables: '" + vnf + "'");
+        }
         
         // Try to expand all remaining (version-number specific) variables.
         int blockStart = 0;
@@ -122,92 +300,56 @@ public class VersionNumberCommon {
                 String expressionKey = vnf.substring(commandStart, commandEnd);
                 String argumentString = argumentEnd > 0 ? vnf.substring(argumentStart + 1, argumentEnd).trim() : "";
                 String replaceValue = "";
+                String variable = null;
+                expansion.enter(blockStart, blockEnd);
             
                 // we have the expression key; if it's any known key, fill in the value
-                if ("".equals(expressionKey)) {
-                    replaceValue = "";
-                } else if ("BUILD_DATE_FORMATTED".equals(expressionKey)) {
-                    DateFormat fmt = SimpleDateFormat.getInstance();
-                    if (!"".equals(argumentString)) {
-                        // this next line is a bit tricky, but basically, we're looking returning everything
-                        // inside a pair of quote marks; in other words, everything from after the first quote
-                        // to before the second
-                        String fmtString = argumentString.substring(argumentString.indexOf('"') + 1, argumentString.indexOf('"', argumentString.indexOf('"') + 1));
-                        fmt = new SimpleDateFormat(fmtString);
-                    }
-                    replaceValue = fmt.format(buildDate.getTime());
-                } else if ("BUILD_DAY".equals(expressionKey)) {
-                    replaceValue = sizeTo(Integer.toString(buildDate.get(Calendar.DAY_OF_MONTH)), argumentString.length());
-                } else if ("BUILD_WEEK".equals(expressionKey)) {
-                    replaceValue = sizeTo(Integer.toString(buildDate.get(Calendar.WEEK_OF_YEAR)), argumentString.length());
-                } else if ("BUILD_MONTH".equals(expressionKey)) {
-                    replaceValue = sizeTo(Integer.toString(buildDate.get(Calendar.MONTH) + 1), argumentString.length());
-                } else if ("BUILD_YEAR".equals(expressionKey)) {
-                    replaceValue = sizeTo(Integer.toString(buildDate.get(Calendar.YEAR)), argumentString.length());
-                } else if ("BUILDS_TODAY".equals(expressionKey)) {
-                    replaceValue = sizeTo(Integer.toString(info.getBuildsToday()), argumentString.length());
-                } else if ("BUILDS_THIS_WEEK".equals(expressionKey)) {
-                    replaceValue = sizeTo(Integer.toString(info.getBuildsThisWeek()), argumentString.length());
-                } else if ("BUILDS_THIS_MONTH".equals(expressionKey)) {
-                    replaceValue = sizeTo(Integer.toString(info.getBuildsThisMonth()), argumentString.length());
-                } else if ("BUILDS_THIS_YEAR".equals(expressionKey)) {
-                    replaceValue = sizeTo(Integer.toString(info.getBuildsThisYear()), argumentString.length());
-                } else if ("BUILDS_ALL_TIME".equals(expressionKey)) {
-                    replaceValue = sizeTo(Integer.toString(info.getBuildsAllTime()), argumentString.length());
-                } else if ("BUILDS_TODAY_Z".equals(expressionKey)) {
-                    replaceValue = sizeTo(Integer.toString(info.getBuildsToday() - 1), argumentString.length());
-                } else if ("BUILDS_THIS_MONTH_Z".equals(expressionKey)) {
-                    replaceValue = sizeTo(Integer.toString(info.getBuildsThisMonth() - 1), argumentString.length());
-                } else if ("BUILDS_THIS_YEAR_Z".equals(expressionKey)) {
-                    replaceValue = sizeTo(Integer.toString(info.getBuildsThisYear() - 1), argumentString.length());
-                } else if ("BUILDS_ALL_TIME_Z".equals(expressionKey)) {
-                    replaceValue = sizeTo(Integer.toString(info.getBuildsAllTime() - 1), argumentString.length());
-                } else if (("MONTHS_SINCE_PROJECT_START".equals(expressionKey)) && (projectStartDate != null)) {
-                    Calendar projectStartCal = Calendar.getInstance();
-                    projectStartCal.setTime(projectStartDate);
-                    int monthsSinceStart = buildDate.get(Calendar.MONTH) - projectStartCal.get(Calendar.MONTH);
-                    monthsSinceStart += (buildDate.get(Calendar.YEAR) - projectStartCal.get(Calendar.YEAR)) * 12;
-                    replaceValue = sizeTo(Integer.toString(monthsSinceStart), argumentString.length());
-                } else if (("YEARS_SINCE_PROJECT_START".equals(expressionKey)) && (projectStartDate != null)) {
-                    Calendar projectStartCal = Calendar.getInstance();
-                    projectStartCal.setTime(projectStartDate);
-                    int yearsSinceStart = buildDate.get(Calendar.YEAR) - projectStartCal.get(Calendar.YEAR);
-                    replaceValue = sizeTo(Integer.toString(yearsSinceStart), argumentString.length());
+                VersionNumberVariable known = variables.get(expressionKey);
+                String knownValue = known != null ? known.getValue(context, argumentString) : null;
+                if (knownValue != null) {
+                    replaceValue = knownValue;
                 }
                 // if it's not one of the defined values, check the environment variables (again)
-                // NOTE: This probably means, that an environment-variable resolves to itself, which
-                //       might result in an infinite loop. Check for this!
+                // NOTE: A variable might resolve to itself, directly or through other variables,
+                //       which would result in an infinite loop. Check for this!
                 else {
-                    LOGGER.fine("Special case: A variable could not be resolved. (Does it resolve to itself?)" +
-                                " [var == " + expressionKey + "]");
-
-                        for (Map.Entry entry : enVars.entrySet()) {
-                            if (entry.getKey().equals(expressionKey)) {
-                                // Check for variable which resolves to itself!
-                                if (entry.getValue().equals("${" + expressionKey + "}")) {
-                                    LOGGER.fine("Yes, the variable resolves to itself. Ignoring it." +
-                                                " [var == " + expressionKey + "]");
-                                } else {
-                                    LOGGER.fine("No, the variable does not resolve to itself. Using it." +
-                                                " [var == " + expressionKey + "]");
-                                    replaceValue = (String)entry.getValue();
-                                    // Probably just use a substring of the value?
-                                    replaceValue = selectSubstringOfReplaceValue(replaceValue, argumentString);
-                                }
+                    String value = env.getExact(expressionKey);
+                    if (value != null) {
+                        if (value.equals("${" + expressionKey + "}")) {
+                            if (trace != null) {
+                                trace.add("Variable resolves to itself, ignoring it. [var == " + expressionKey + "]");
                             }
-
+                        } else if (expansion.isExpanding(expressionKey)) {
+                            if (trace != null) {
+                                trace.add("Variable refers to itself through its value, ignoring it. [var == " + expressionKey + "]");
+                            }
+                        } else {
+                            // Probably just use a substring of the value?
+                            replaceValue = selectSubstringOfReplaceValue(value, argumentString, trace);
+                            variable = expressionKey;
+                        }
                     }
                 }
+                if (trace != null) {
+                    trace.add("Replacing '" + vnf.substring(blockStart, blockEnd) + "' with '" + replaceValue + "'");
+                }
+                expansion.replaced(variable, blockStart, blockEnd, replaceValue.length());
                 vnf = vnf.substring(0, blockStart) + replaceValue + vnf.substring(blockEnd, vnf.length());
             }
         } while (blockStart >= 0);
         
-        LOGGER.info("Version-number format-string after expansion of all variables: '" + vnf + "'");
         return vnf;
     }
     
-    private static String selectSubstringOfReplaceValue(String replaceValue, String argumentString) {
-        LOGGER.info("Before selecting a substring of the replace-value. [replaceValue == " + replaceValue + ", argumentString == " + argumentString + "]");
+    static String selectSubstringOfReplaceValue(String replaceValue, String argumentString) {
+        return selectSubstringOfReplaceValue(replaceValue, argumentString, null);
+    }
+
+    private static String selectSubstringOfReplaceValue(String replaceValue, String argumentString,
+                                                        @CheckForNull VersionNumberTrace trace) {
+        if (trace != null) {
+            trace.add("Before selecting a substring of the replace-value. [replaceValue == " + replaceValue + ", argumentString == " + argumentString + "]");
+        }
         
         // We will use the below lines to limit the number of character we want to 
         // use from the front or the back of the replace-value (aka environment variable).
@@ -230,7 +372,9 @@ public class VersionNumberCommon {
                 }
             }
         }
-        LOGGER.info("After selecting a substring of the replace-value. [replaceValue == " + replaceValue + "]");
+        if (trace != null) {
+            trace.add("After selecting a substring of the replace-value. [replaceValue == " + replaceValue + "]");
+        }
         return replaceValue;
     }
     
@@ -245,36 +389,6 @@ public class VersionNumberCommon {
      * @return The given <a>buildNum</a> if valid or an empty string.
      */
     public static String makeValid(String value) {
-        if (value == null) return "";  // Return the default-value.
-        try {
-            value = value.trim();
-            // If we got a valid integer the following conversion will
-            // succeed without an exception.
-            Integer intVal = Integer.valueOf(value);
-            if (intVal < 0)
-                return "";  // Negative numbers are not allowed.
-            else
-                return intVal.toString();
-        } catch (Exception e) {
-            // Obviously, we did not receive a valid integer as override.
-            // Is it a reference to an environment-variable?
-            if (value.matches(VersionNumberCommon.ENV_VAR_PATTERN)) {
-                // Yes, so return it as-is and only retrieve its value when
-                // the value must be accessed (to always get the most
-                // up-to-date value).
-                return value;
-            } else {
-                // No, so it seems to be junk. Just return the default-value.
-                return "";
-            }
-        }
-    }
-    
-    private static String sizeTo(String s, int length) {
-        while (s.length() < length) {
-            s = "0" + s;
-        }
-        return s;
+        return VersionNumberOverride.parse(value).toString();
     }
 }
-
@@ -0,0 +1,53 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * A variable counting builds, like <code>${BUILDS_THIS_MONTH}</code>, which is
+ * one of the built-in counters.
+ *
+ * <p>
+ * It goes up by one with every build, unless the previous build's result was
+ * worse than required, and starts over at 1 whenever {@link #continues} says
+ * so. Every build keeps the values of all counters (see
+ * {@link VersionNumberBuildInfo#getCounter(String)}), whether its format-string
+ * uses them or not, so the next build can go on from them. There are no
+ * overrides for contributed counters.
+ * </p>
+ */
+public abstract class VersionNumberCounter extends VersionNumberVariable {
+
+    /**
+     * Returns whether a build continues counting from the previous build with a
+     * version-number, rather than starting over, e.g. whether both started in
+     * the same quarter.
+     *
+     * @param build When the build started, in the time zone of the counters.
+     * @param previous When the previous build started, in the same time zone.
+     */
+    public abstract boolean continues(@NonNull ZonedDateTime build, @NonNull ZonedDateTime previous);
+
+    /**
+     * Returns whether a build continues counting from the previous build, in
+     * the periods configured for the job.
+     *
+     * @param millis When the build started.
+     * @param prevMillis When the previous build started.
+     */
+    boolean continues(@NonNull VersionNumberPeriods periods, long millis, long prevMillis) {
+        ZoneId zone = periods.getZone();
+        return continues(Instant.ofEpochMilli(millis).atZone(zone), Instant.ofEpochMilli(prevMillis).atZone(zone));
+    }
+
+    @CheckForNull
+    @Override
+    public final String getValue(@NonNull Context context, @NonNull String argument) {
+        Integer value = context.getInfo().getCounter(getName());
+        return value != null ? pad(value, argument) : null;
+    }
+}
@@ -0,0 +1,236 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+
+import hudson.EnvVars;
+import hudson.model.Result;
+import hudson.model.Run;
+
+/**
+ * Computes the counters of a new version-number from the ones of the previous
+ * build.
+ *
+ * <p>
+ * The previous build's counters, result and timestamp are taken from its
+ * {@link VersionNumberIndex.Entry}, so a completed build is not loaded at all.
+ * Both timestamps are broken into periods once (see {@link VersionNumberPeriods})
+ * and every override is resolved once, and then all counters are filled in a
+ * single pass. The {@link BuildNumberGenerator}s delegate here as well.
+ * </p>
+ * <p>
+ * When the format-string uses no counter depending on the calendar, those are
+ * left to the {@link VersionNumberBuildInfo} to compute when first read.
+ * </p>
+ * <p>
+ * The {@link VersionNumberCounter}s contributed by plugins are all computed
+ * right away, whether the format-string uses them or not, so they always
+ * continue from the previous build.
+ * </p>
+ */
+final class VersionNumberCounters {
+
+    /**
+     * The counters of a {@link VersionNumberBuildInfo}.
+     */
+    enum Counter {
+        BUILDS_TODAY("buildsToday"),
+        BUILDS_THIS_WEEK("buildsThisWeek"),
+        BUILDS_THIS_MONTH("buildsThisMonth"),
+        BUILDS_THIS_YEAR("buildsThisYear"),
+        BUILDS_ALL_TIME("buildsAllTime");
+
+        /** The name of the property of {@link VersionNumberBuildInfo}, e.g. in exported histories. */
+        final String property;
+
+        Counter(String property) {
+            this.property = property;
+        }
+
+        /**
+         * Returns the counter with the given property name, if any.
+         */
+        @CheckForNull
+        static Counter ofProperty(String property) {
+            for (Counter counter : COUNTERS) {
+                if (counter.property.equals(property)) {
+                    return counter;
+                }
+            }
+            return null;
+        }
+
+        int bit() {
+            return 1 << ordinal();
+        }
+
+        int get(VersionNumberBuildInfo info) {
+            switch (this) {
+                case BUILDS_TODAY:      return info.getBuildsToday();
+                case BUILDS_THIS_WEEK:  return info.getBuildsThisWeek();
+                case BUILDS_THIS_MONTH: return info.getBuildsThisMonth();
+                case BUILDS_THIS_YEAR:  return info.getBuildsThisYear();
+                default:                return info.getBuildsAllTime();
+            }
+        }
+    }
+
+    private static final Counter[] COUNTERS = Counter.values();
+
+    /** All counters, as bit mask. */
+    static final int ALL = (1 << COUNTERS.length) - 1;
+
+    /** The counters which depend on the calendar, as bit mask. */
+    private static final int CALENDAR = ALL & ~Counter.BUILDS_ALL_TIME.bit();
+
+    private VersionNumberCounters() {
+    }
+
+    /**
+     * Computes the counters of the given build.
+     *
+     * <p>
+     * Only the required counters are computed right away. The ones depending on
+     * the calendar (all but {@link Counter#BUILDS_ALL_TIME}) are computed once
+     * first read, if none of them is required.
+     * </p>
+     *
+     * @param previous The previous build with a version-number, if any.
+     * @param periods Which day, week, ... the builds fall into.
+     * @param required The counters needed right away, as bit mask of
+     *                 {@link Counter#bit()}s.
+     * @param overrides The overrides of the counters, in the order of
+     *                  {@link Counter}.
+     */
+    static VersionNumberBuildInfo next(Run build, EnvVars vars, @CheckForNull VersionNumberIndex.Entry previousEntry,
+            Result worstResultForIncrement, VersionNumberPeriods periods, int required,
+            VersionNumberOverride... overrides) {
+        VersionNumberBuildInfo info = nextBuiltIn(build, vars, previousEntry, worstResultForIncrement, periods, required,
+                                                  overrides);
+        VersionNumberCounter[] counters = VersionNumberVariables.get().getCounters();
+        if (counters.length > 0) {
+            nextContributed(info, counters, build.getTimeInMillis(), previousEntry, worstResultForIncrement, periods);
+        }
+        return info;
+    }
+
+    private static VersionNumberBuildInfo nextBuiltIn(Run build, EnvVars vars,
+            @CheckForNull VersionNumberIndex.Entry previousEntry, Result worstResultForIncrement,
+            VersionNumberPeriods periods, int required, VersionNumberOverride... overrides) {
+        int[] values = new int[COUNTERS.length];
+        int overridden = 0;
+        for (Counter counter : COUNTERS) {
+            Integer value = overrides[counter.ordinal()].resolve(vars);
+            if (value != null) {
+                values[counter.ordinal()] = value;
+                overridden |= counter.bit();
+            } else {
+                values[counter.ordinal()] = 1;
+            }
+        }
+        if (previousEntry == null || overridden == ALL) {
+            return new VersionNumberBuildInfo(values, null);
+        }
+
+        VersionNumberBuildInfo previous = previousEntry.getInfo();
+        int increment = increment(previousEntry, worstResultForIncrement);
+        int deferred = ALL & ~overridden;
+        if ((deferred & Counter.BUILDS_ALL_TIME.bit()) != 0) {
+            values[Counter.BUILDS_ALL_TIME.ordinal()] = previous.getBuildsAllTime() + increment;
+        }
+        deferred &= CALENDAR;
+        if (deferred == 0) {
+            return new VersionNumberBuildInfo(values, null);
+        }
+        Pending pending = new Pending(previous, increment, periods, build.getTimeInMillis(), previousEntry.getTimestamp(),
+                deferred);
+        if ((required & CALENDAR) == 0) {
+            // Nothing needs the calendar right now, so leave that for later.
+            return new VersionNumberBuildInfo(values, pending);
+        }
+        VersionNumberBuildInfo info = new VersionNumberBuildInfo(values, null);
+        pending.computeTo(info);
+        return info;
+    }
+
+    /**
+     * Computes the contributed counters. A counter the previous build did not
+     * have yet starts at 1.
+     */
+    private static void nextContributed(VersionNumberBuildInfo info, VersionNumberCounter[] counters, long millis,
+            @CheckForNull VersionNumberIndex.Entry previousEntry, Result worstResultForIncrement,
+            VersionNumberPeriods periods) {
+        VersionNumberBuildInfo previous = previousEntry != null ? previousEntry.getInfo() : null;
+        for (VersionNumberCounter counter : counters) {
+            Integer previousValue = previous != null ? previous.getCounter(counter.getName()) : null;
+            int value = 1;
+            if (previousValue != null) {
+                if (counter.continues(periods, millis, previousEntry.getTimestamp())) {
+                    value = previousValue + increment(previousEntry, worstResultForIncrement);
+                }
+            }
+            info.setCounter(counter.getName(), value);
+        }
+    }
+
+    /**
+     * Returns by how much the counters go up: not at all if the previous
+     * build's result was worse than required.
+     */
+    private static int increment(VersionNumberIndex.Entry previousEntry, Result worstResultForIncrement) {
+        Result result = previousEntry.getResult();
+        return result != null && result.isWorseThan(worstResultForIncrement) ? 0 : 1;
+    }
+
+    /**
+     * Computes a single counter of the given build, the way
+     * {@link BuildNumberGenerator#resolveValue(Run, Run, int)} does.
+     */
+    static int resolveValue(Counter counter, Run build, Run prevBuild, int increment) {
+        int continuing = VersionNumberPeriods.DEFAULT.getContinuing(build.getTimeInMillis(), prevBuild.getTimeInMillis());
+        if ((continuing & counter.bit()) == 0) {
+            return 1;
+        }
+        return counter.get(getInfo(prevBuild)) + increment;
+    }
+
+    private static VersionNumberBuildInfo getInfo(Run prevBuild) {
+        VersionNumberAction prevAction = (VersionNumberAction) prevBuild.getAction(VersionNumberAction.class);
+        return prevAction.getInfo();
+    }
+
+    /**
+     * Everything needed to compute the counters of a build which were deferred.
+     */
+    static final class Pending {
+        private final VersionNumberBuildInfo previous;
+        private final int increment;
+        private final VersionNumberPeriods periods;
+        private final long millis;
+        private final long prevMillis;
+        /** The counters to compute, as bit mask. */
+        private final int deferred;
+
+        Pending(VersionNumberBuildInfo previous, int increment, VersionNumberPeriods periods, long millis,
+                long prevMillis, int deferred) {
+            this.previous = previous;
+            this.increment = increment;
+            this.periods = periods;
+            this.millis = millis;
+            this.prevMillis = prevMillis;
+            this.deferred = deferred;
+        }
+
+        boolean isDeferred(Counter counter) {
+            return (deferred & counter.bit()) != 0;
+        }
+
+        void computeTo(VersionNumberBuildInfo info) {
+            int continuing = periods.getContinuing(millis, prevMillis);
+            for (Counter counter : COUNTERS) {
+                if (isDeferred(counter)) {
+                    info.set(counter, (continuing & counter.bit()) != 0 ? counter.get(previous) + increment : 1);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import java.text.DateFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.SignStyle;
+import java.time.temporal.ChronoField;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+
+/**
+ * Shared, thread-safe cache of the date-formats used for version-numbers.
+ *
+ * <p>
+ * Date-format patterns follow {@link SimpleDateFormat}. Patterns consisting only
+ * of numeric fields and literal text are translated into an immutable
+ * {@link DateTimeFormatter}, which produces the same output. All other patterns
+ * (text fields like month or day names, time zones, ...) keep using a single,
+ * cached {@link SimpleDateFormat} per pattern.
+ * </p>
+ * <p>
+ * Formats are cached per pattern for the time zone and format locale in use,
+ * which practically never change on a running controller.
+ * </p>
+ */
+final class VersionNumberDateFormat {
+
+    private static final int MAX_FORMATS = 128;
+
+    private static volatile Context context;
+
+    /** The translated pattern or {@code null} if it cannot be translated. */
+    private final DateTimeFormatter formatter;
+    /** Used for parsing and whenever there is no {@link #formatter}. Guarded by itself. */
+    private final DateFormat legacy;
+
+    private VersionNumberDateFormat(DateTimeFormatter formatter, DateFormat legacy) {
+        this.formatter = formatter;
+        this.legacy = legacy;
+    }
+
+    /**
+     * Formats a date like <code>new SimpleDateFormat(pattern).format(date)</code> does.
+     *
+     * @param pattern The {@link SimpleDateFormat} pattern or {@code null} for
+     *                the default (short) date and time format.
+     * @param millis The date.
+     * @param zone The time zone.
+     * @param sb The formatted date gets appended here.
+     */
+    static void formatTo(@CheckForNull String pattern, long millis, TimeZone zone, StringBuilder sb) {
+        VersionNumberDateFormat format = get(pattern, zone);
+        if (format.formatter != null) {
+            format.formatter.formatTo(Instant.ofEpochMilli(millis), sb);
+        } else {
+            synchronized (format.legacy) {
+                sb.append(format.legacy.format(new Date(millis)));
+            }
+        }
+    }
+
+    /**
+     * Formats a date like <code>new SimpleDateFormat(pattern).format(date)</code> does.
+     */
+    static String format(@CheckForNull String pattern, Date date, TimeZone zone) {
+        StringBuilder sb = new StringBuilder();
+        formatTo(pattern, date.getTime(), zone, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Parses a date like <code>new SimpleDateFormat(pattern).parse(text)</code> does.
+     */
+    static Date parse(String pattern, String text) throws ParseException {
+        VersionNumberDateFormat format = get(pattern, TimeZone.getDefault());
+        synchronized (format.legacy) {
+            return format.legacy.parse(text);
+        }
+    }
+
+    private static VersionNumberDateFormat get(@CheckForNull String pattern, TimeZone zone) {
+        Locale locale = Locale.getDefault(Locale.Category.FORMAT);
+        Context c = context;
+        if (c == null || !c.zone.getID().equals(zone.getID()) || !c.locale.equals(locale)) {
+            c = new Context((TimeZone) zone.clone(), locale);
+            context = c;
+        }
+        return c.get(pattern);
+    }
+
+    /**
+     * Translates a {@link SimpleDateFormat} pattern into an equivalent
+     * {@link DateTimeFormatter}.
+     *
+     * @return The formatter or {@code null} if the pattern uses anything but
+     *         numeric fields and literal text.
+     */
+    @CheckForNull
+    static DateTimeFormatter translate(String pattern, ZoneId zone) {
+        DateTimeFormatterBuilder builder = new DateTimeFormatterBuilder();
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (c == '\'') {
+                // Quoted text, where '' is a single quote.
+                if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '\'') {
+                    builder.appendLiteral('\'');
+                    i += 2;
+                    continue;
+                }
+                StringBuilder literal = new StringBuilder();
+                int j = i + 1;
+                while (true) {
+                    if (j >= pattern.length()) {
+                        return null;  // Unterminated quote.
+                    }
+                    char q = pattern.charAt(j);
+                    if (q == '\'') {
+                        if (j + 1 < pattern.length() && pattern.charAt(j + 1) == '\'') {
+                            literal.append('\'');
+                            j += 2;
+                            continue;
+                        }
+                        j++;
+                        break;
+                    }
+                    literal.append(q);
+                    j++;
+                }
+                builder.appendLiteral(literal.toString());
+                i = j;
+            } else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+                int count = 1;
+                while (i + count < pattern.length() && pattern.charAt(i + count) == c) {
+                    count++;
+                }
+                ChronoField field = numericField(c, count);
+                if (field == null || count > 19) {
+                    return null;
+                }
+                if (c == 'y' && count == 2) {
+                    builder.appendValueReduced(field, 2, 2, 2000);
+                } else if (count == 1) {
+                    builder.appendValue(field);
+                } else {
+                    builder.appendValue(field, count, 19, SignStyle.NORMAL);
+                }
+                i += count;
+            } else {
+                builder.appendLiteral(c);
+                i++;
+            }
+        }
+        return builder.toFormatter(Locale.ROOT).withZone(zone);
+    }
+
+    @CheckForNull
+    private static ChronoField numericField(char letter, int count) {
+        switch (letter) {
+            case 'y': return ChronoField.YEAR_OF_ERA;
+            case 'M': return count <= 2 ? ChronoField.MONTH_OF_YEAR : null;
+            case 'd': return ChronoField.DAY_OF_MONTH;
+            case 'D': return ChronoField.DAY_OF_YEAR;
+            case 'H': return ChronoField.HOUR_OF_DAY;
+            case 'k': return ChronoField.CLOCK_HOUR_OF_DAY;
+            case 'K': return ChronoField.HOUR_OF_AMPM;
+            case 'h': return ChronoField.CLOCK_HOUR_OF_AMPM;
+            case 'm': return ChronoField.MINUTE_OF_HOUR;
+            case 's': return ChronoField.SECOND_OF_MINUTE;
+            case 'S': return ChronoField.MILLI_OF_SECOND;
+            default:  return null;
+        }
+    }
+
+    /**
+     * The formats for one time zone and format locale.
+     */
+    private static final class Context {
+        final TimeZone zone;
+        final Locale locale;
+        /**
+         * Translated formats are only equivalent for the Gregorian calendar and
+         * ASCII digits, which is what most locales use.
+         */
+        final boolean translatable;
+        final ConcurrentMap<String, VersionNumberDateFormat> formats = new ConcurrentHashMap<>();
+        volatile VersionNumberDateFormat defaultFormat;
+
+        Context(TimeZone zone, Locale locale) {
+            this.zone = zone;
+            this.locale = locale;
+            this.translatable = "gregory".equals(Calendar.getInstance(zone, locale).getCalendarType())
+                    && DecimalFormatSymbols.getInstance(locale).getZeroDigit() == '0';
+        }
+
+        VersionNumberDateFormat get(@CheckForNull String pattern) {
+            if (pattern == null) {
+                VersionNumberDateFormat format = defaultFormat;
+                if (format == null) {
+                    DateFormat legacy = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT, locale);
+                    legacy.setTimeZone(zone);
+                    format = new VersionNumberDateFormat(null, legacy);
+                    defaultFormat = format;
+                }
+                return format;
+            }
+            VersionNumberDateFormat format = formats.get(pattern);
+            if (format == null) {
+                if (formats.size() >= MAX_FORMATS) {
+                    formats.clear();
+                }
+                format = formats.computeIfAbsent(pattern, this::create);
+            }
+            return format;
+        }
+
+        private VersionNumberDateFormat create(String pattern) {
+            // Throws for invalid patterns, just like creating it for every build did.
+            SimpleDateFormat legacy = new SimpleDateFormat(pattern, locale);
+            legacy.setTimeZone(zone);
+            DateTimeFormatter formatter = translatable ? translate(pattern, zone.toZoneId()) : null;
+            return new VersionNumberDateFormat(formatter, legacy);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import hudson.EnvVars;
+
+/**
+ * A read-only view of the environment-variables of a build, for expanding
+ * format-strings without copying them.
+ *
+ * <p>
+ * {@link #get} ignores the case of names like {@link EnvVars} does. The build
+ * environment already is an {@link EnvVars}, so it is used as it is; for other
+ * maps a case-insensitive index is built once a name cannot be found as it is.
+ * </p>
+ */
+final class VersionNumberEnvironment {
+
+    /** The same pattern {@link hudson.Util#replaceMacro} uses for variables. */
+    static final Pattern VARIABLE = Pattern.compile("\\$([A-Za-z0-9_]+|\\{[A-Za-z0-9_.]+\\}|\\$)");
+
+    private final Map<String, String> vars;
+    /** The variables by case-insensitive name, unless {@link #vars} already is. */
+    private NavigableMap<String, String> ignoringCase;
+
+    private VersionNumberEnvironment(Map<String, String> vars) {
+        this.vars = vars;
+        if (vars instanceof EnvVars) {
+            this.ignoringCase = (EnvVars) vars;
+        }
+    }
+
+    static VersionNumberEnvironment of(Map<String, String> vars) {
+        return new VersionNumberEnvironment(vars);
+    }
+
+    /**
+     * Returns the value of the given variable, ignoring the case of its name.
+     */
+    String get(String name) {
+        String value = vars.get(name);
+        if (value != null || vars == ignoringCase) {
+            return value;
+        }
+        if (ignoringCase == null) {
+            ignoringCase = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            ignoringCase.putAll(vars);
+        }
+        return ignoringCase.get(name);
+    }
+
+    /**
+     * Returns the value of the variable with exactly the given name.
+     */
+    String getExact(String name) {
+        if (vars instanceof EnvVars) {
+            String key = ((EnvVars) vars).ceilingKey(name);
+            return name.equals(key) ? vars.get(key) : null;
+        }
+        return vars.get(name);
+    }
+
+    /**
+     * Expands all references to variables like {@link EnvVars#expand} does:
+     * values are inserted as they are, without expanding them in turn.
+     */
+    String expand(String s) {
+        Matcher m = VARIABLE.matcher(s);
+        StringBuilder sb = null;
+        int idx = 0;
+        while (m.find()) {
+            String key = m.group(1);
+            String value;
+            if (key.charAt(0) == '$') {
+                value = "$";
+            } else {
+                if (key.charAt(0) == '{') {
+                    key = key.substring(1, key.length() - 1);
+                }
+                value = get(key);
+            }
+            if (value != null) {
+                if (sb == null) {
+                    sb = new StringBuilder(s.length() + 16);
+                }
+                sb.append(s, idx, m.start()).append(value);
+                idx = m.end();
+            }
+        }
+        if (sb == null) {
+            return s;
+        }
+        return sb.append(s, idx, s.length()).toString();
+    }
+
+    /**
+     * Keeps track of the variables whose values a format-string is made of,
+     * while its blocks get replaced one after the other. A block found inside
+     * the value of a variable which is still being expanded refers back to it.
+     */
+    static final class Expansion {
+        private final List<String> names = new ArrayList<>();
+        /** The start and end of the value of each variable in {@link #names}. */
+        private final List<int[]> ranges = new ArrayList<>();
+
+        /**
+         * Moves on to the block from <code>start</code> to <code>end</code>,
+         * leaving the values it is not part of.
+         */
+        void enter(int start, int end) {
+            for (int i = names.size() - 1; i >= 0; i--) {
+                int[] range = ranges.get(i);
+                if (start >= range[1] || end <= range[0]) {
+                    names.remove(i);
+                    ranges.remove(i);
+                }
+            }
+        }
+
+        /**
+         * Returns whether the current block is part of the value of the given
+         * variable.
+         */
+        boolean isExpanding(String name) {
+            return names.contains(name);
+        }
+
+        /**
+         * Records that the current block, from <code>start</code> to
+         * <code>end</code>, got replaced by a value of the given length.
+         *
+         * @param name The variable the value comes from, or {@code null}.
+         */
+        void replaced(String name, int start, int end, int length) {
+            int delta = length - (end - start);
+            for (int[] range : ranges) {
+                range[0] = Math.min(range[0], start);
+                range[1] = Math.max(range[1], end) + delta;
+            }
+            if (name != null) {
+                names.add(name);
+                ranges.add(new int[] {start, start + length});
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import net.sf.json.JSONObject;
+
+import hudson.model.Job;
+import hudson.model.Result;
+
+import org.jvnet.hudson.tools.versionnumber.VersionNumberCounters.Counter;
+import org.jvnet.hudson.tools.versionnumber.VersionNumberIndex.Entry;
+
+/**
+ * Exports and imports the version-number history of a job as newline-delimited
+ * JSON, one build per line, e.g. to move the job to another controller without
+ * its builds and have its next build continue the sequence there:
+ *
+ * <pre>
+ * {"number":317,"timestamp":1700000000000,"result":"SUCCESS","counters":{"buildsToday":3,"buildsThisWeek":12,"buildsThisMonth":40,"buildsThisYear":310,"buildsAllTime":317},"version":"1.0.317"}
+ * </pre>
+ *
+ * <p>
+ * The values of {@link VersionNumberCounter}s go into <code>counters</code> by
+ * their name, e.g. <code>"BUILDS_THIS_QUARTER":12</code>.
+ * </p>
+ * <p>
+ * Both ways go a batch of builds at a time, so the memory needed does not grow
+ * with the history. The history comes from the {@link VersionNumberIndex}, so
+ * exporting it does not load any build either.
+ * </p>
+ * <p>
+ * An import is checked completely before any of it is used, and kept next to
+ * the job's <code>config.xml</code>, so rebuilding the index from the build
+ * history does not lose it. Builds the index knows already keep their entry
+ * and are not kept again, which makes importing the same history again
+ * harmless. The next build continues from the build which got the last
+ * version-number (see {@link VersionNumberIndex#getLatest}), so each imported
+ * build ranks right after the builds with lower numbers, as if it had been
+ * built here after them. The next build number of the job is raised past the
+ * imported builds, if need be, so the builds to come do not take their numbers
+ * and rank after them.
+ * </p>
+ */
+final class VersionNumberHistory {
+
+    static final String IMPORTED_FILE_NAME = "versionnumber-imported.ndjson";
+
+    /** The number of builds exported or imported at a time. */
+    private static final int BATCH_SIZE = 1000;
+
+    private VersionNumberHistory() {
+    }
+
+    /**
+     * Writes the history of the given job.
+     */
+    static void export(@NonNull VersionNumberIndex index, @NonNull Writer writer) throws IOException {
+        int after = 0;
+        List<Entry> batch;
+        while (!(batch = index.getEntries(after, BATCH_SIZE)).isEmpty()) {
+            for (Entry entry : batch) {
+                writer.write(toJSON(entry).toString());
+                writer.write('\n');
+            }
+            after = batch.get(batch.size() - 1).getNumber();
+        }
+        writer.flush();
+    }
+
+    /**
+     * Imports the history of the given job.
+     *
+     * @return How many builds were imported, were indexed already or had not
+     *         completed, and the next build number of the job.
+     * @throws IllegalArgumentException If a line is not a build, in which case
+     *                                  nothing is imported.
+     */
+    @NonNull
+    static JSONObject importFrom(@NonNull Job<?, ?> job, @NonNull Reader reader) throws IOException {
+        File spool = File.createTempFile("versionnumber-import", ".ndjson", job.getRootDir());
+        try {
+            // Check every line before importing any, writing them down meanwhile.
+            int complete = 0;
+            int incomplete = 0;
+            int maxNumber = 0;
+            try (BufferedReader in = new BufferedReader(reader);
+                 Writer out = Files.newBufferedWriter(spool.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                int lineNumber = 0;
+                while ((line = in.readLine()) != null) {
+                    lineNumber++;
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    Entry entry;
+                    try {
+                        entry = fromJSON(JSONObject.fromObject(line));
+                    } catch (RuntimeException e) {
+                        throw new IllegalArgumentException("Line " + lineNumber + ": " + e.getMessage(), e);
+                    }
+                    if (!entry.isComplete()) {
+                        // Still running when exported; the next build could not continue from it.
+                        incomplete++;
+                        continue;
+                    }
+                    complete++;
+                    maxNumber = Math.max(maxNumber, entry.getNumber());
+                    out.write(toJSON(entry).toString());
+                    out.write('\n');
+                }
+            }
+            VersionNumberIndex index = VersionNumberIndex.of(job);
+            int[] added = new int[1];
+            // Only the builds added are kept, and only once they are, as an
+            // index built from them would count them as known already.
+            File imported = new File(job.getRootDir(), IMPORTED_FILE_NAME);
+            try (Writer out = Files.newBufferedWriter(imported.toPath(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                read(spool, batch -> {
+                    List<Entry> fresh = index.importEntries(batch);
+                    added[0] += fresh.size();
+                    try {
+                        for (Entry entry : fresh) {
+                            out.write(toJSON(entry).toString());
+                            out.write('\n');
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (job.getNextBuildNumber() <= maxNumber) {
+                job.updateNextBuildNumber(maxNumber + 1);
+            }
+            JSONObject result = new JSONObject();
+            result.put("imported", added[0]);
+            result.put("existing", complete - added[0]);
+            result.put("incomplete", incomplete);
+            result.put("nextBuildNumber", job.getNextBuildNumber());
+            return result;
+        } finally {
+            Files.deleteIfExists(spool.toPath());
+        }
+    }
+
+    /**
+     * Reads a history written by {@link #export}, a batch of builds at a time.
+     */
+    static void read(@NonNull File file, @NonNull Consumer<List<Entry>> consumer) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                batch.add(fromJSON(JSONObject.fromObject(line)));
+                if (batch.size() == BATCH_SIZE) {
+                    consumer.accept(batch);
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()) {
+                consumer.accept(batch);
+            }
+        }
+    }
+
+    @NonNull
+    static JSONObject toJSON(@NonNull Entry entry) {
+        JSONObject json = new JSONObject();
+        json.put("number", entry.getNumber());
+        json.put("timestamp", entry.getTimestamp());
+        if (entry.getResult() != null) {
+            json.put("result", entry.getResult().toString());
+        }
+        VersionNumberBuildInfo info = entry.getInfo();
+        if (info != null && info.isComputed()) {
+            JSONObject counters = new JSONObject();
+            for (Counter counter : Counter.values()) {
+                counters.put(counter.property, counter.get(info));
+            }
+            Map<String, Integer> contributed = info.getContributed();
+            if (contributed != null) {
+                counters.putAll(contributed);
+            }
+            json.put("counters", counters);
+        }
+        if (entry.getVersionNumber() != null) {
+            json.put("version", entry.getVersionNumber());
+        }
+        if (entry.getPrefix() != null) {
+            json.put("prefix", entry.getPrefix());
+        }
+        return json;
+    }
+
+    @NonNull
+    static Entry fromJSON(@NonNull JSONObject json) {
+        int number = json.getInt("number");
+        if (number <= 0) {
+            throw new IllegalArgumentException("Invalid build number " + number);
+        }
+        JSONObject counters = json.optJSONObject("counters");
+        VersionNumberBuildInfo info = null;
+        if (counters != null) {
+            Counter[] builtIn = Counter.values();
+            int[] values = new int[builtIn.length];
+            for (Counter counter : builtIn) {
+                values[counter.ordinal()] = counter(counters, counter.property);
+            }
+            info = new VersionNumberBuildInfo(values, null);
+            for (Object name : counters.keySet()) {
+                if (Counter.ofProperty((String) name) == null) {
+                    if (!VersionNumberVariables.isValidName((String) name)) {
+                        throw new IllegalArgumentException("Invalid counter name '" + name + "'");
+                    }
+                    info.setCounter((String) name, counter(counters, (String) name));
+                }
+            }
+        }
+        return new Entry(number, json.getLong("timestamp"), result(json.optString("result", null)),
+                         info, json.optString("version", null), json.optString("prefix", null));
+    }
+
+    private static int counter(JSONObject counters, String name) {
+        int value = counters.getInt(name);
+        if (value < 0) {
+            throw new IllegalArgumentException("Invalid " + name + " " + value);
+        }
+        return value;
+    }
+
+    @CheckForNull
+    private static Result result(@CheckForNull String name) {
+        if (name == null) {
+            return null;
+        }
+        // Result.fromString() takes anything it does not know for a failure.
+        Result result = Result.fromString(name);
+        if (!result.toString().equals(name)) {
+            throw new IllegalArgumentException("Invalid result '" + name + "'");
+        }
+        return result;
+    }
+}
@@ -0,0 +1,95 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.StaplerResponse2;
+import org.kohsuke.stapler.verb.GET;
+import org.kohsuke.stapler.verb.POST;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+
+/**
+ * Exports and imports the version-number history of a job (see
+ * {@link VersionNumberHistory}):
+ *
+ * <ul>
+ * <li><code>GET /versionnumber-history/export?job=folder/name</code> needs
+ * permission to read the job.</li>
+ * <li><code>POST /versionnumber-history/import?job=folder/name</code> with an
+ * export as body needs permission to configure the job, and answers with how
+ * many builds were imported.</li>
+ * </ul>
+ */
+@Extension
+public class VersionNumberHistoryAction implements RootAction {
+
+    @Override
+    public String getIconFileName() {
+        return null;  // Not shown in the UI.
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Version Number History";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "versionnumber-history";
+    }
+
+    @GET
+    public void doExport(StaplerRequest2 req, StaplerResponse2 rsp) throws IOException {
+        Job<?, ?> job = getJob(req, rsp);
+        if (job == null) {
+            return;
+        }
+        job.checkPermission(Item.READ);
+        rsp.setContentType("application/x-ndjson;charset=UTF-8");
+        VersionNumberHistory.export(VersionNumberIndex.of(job), rsp.getWriter());
+    }
+
+    @POST
+    public void doImport(StaplerRequest2 req, StaplerResponse2 rsp) throws IOException {
+        Job<?, ?> job = getJob(req, rsp);
+        if (job == null) {
+            return;
+        }
+        job.checkPermission(Item.CONFIGURE);
+        JSONObject result;
+        try {
+            result = VersionNumberHistory.importFrom(job, new InputStreamReader(req.getInputStream(), StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            rsp.sendError(400, e.getMessage());
+            return;
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().write(result.toString(2));
+    }
+
+    /** Returns the job named by the request, or sends an error if there is none. */
+    @CheckForNull
+    private static Job<?, ?> getJob(StaplerRequest2 req, StaplerResponse2 rsp) throws IOException {
+        String name = req.getParameter("job");
+        if (name == null || name.isEmpty()) {
+            rsp.sendError(400, "Missing parameter 'job'");
+            return null;
+        }
+        Job<?, ?> job = Jenkins.get().getItemByFullName(name, Job.class);
+        if (job == null) {
+            rsp.sendError(404, "No such job '" + name + "'");
+        }
+        return job;
+    }
+}
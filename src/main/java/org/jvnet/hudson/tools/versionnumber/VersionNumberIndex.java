@@ -0,0 +1,1134 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.lang.invoke.MethodHandles;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import hudson.util.AtomicFileWriter;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+
+/**
+ * Per-job index of all builds carrying a {@link VersionNumberAction}.
+ *
+ * <p>
+ * Finding the previous build with a version-number used to mean following
+ * {@link Run#getPreviousBuild()} until a build with a {@link VersionNumberAction}
+ * showed up, loading the <code>build.xml</code> of every build on the way. This
+ * index keeps the version-number information of every such build in a small
+ * journal file next to the job's <code>config.xml</code>, and in memory while
+ * the job is in use, so the previous build can be found without touching any
+ * other build.
+ * </p>
+ * <p>
+ * Only the entries of the indexes used most recently stay in memory (see
+ * {@link #MAX_RESIDENT}). The others are dropped, and read from the journal
+ * again when next needed.
+ * </p>
+ * <p>
+ * The journal is append-only (one line per change) and gets compacted once it
+ * grows too large. If it is missing or cannot be read, the index is rebuilt from
+ * the build history of the job.
+ * </p>
+ * <p>
+ * Indexes are loaded in the background after a restart (see
+ * {@link VersionNumberIndexWarmUp}). While that is in progress, changes are
+ * queued instead of waiting for it, and builds look up their predecessor the
+ * old way (see {@link #isLoading()}).
+ * </p>
+ * <p>
+ * Entries can also be imported from the history of the job elsewhere (see
+ * {@link VersionNumberHistory}); those are kept in a file of their own as
+ * well, so rebuilding the index from the build history does not lose them.
+ * </p>
+ */
+public final class VersionNumberIndex {
+
+    /** Use Java 7 MethodHandles to get my class for logger. */
+    private static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getCanonicalName());
+
+    static final String FILE_NAME = "versionnumber-index.log";
+
+    private static final String HEADER = "versionnumber-index 2";
+    /** Journals without the order in which the builds got their version-numbers. */
+    private static final String HEADER_1 = "versionnumber-index 1";
+    private static final String NULL_VALUE = "\\N";
+
+    /** Shares the heads of version-numbers and the prefixes between entries. */
+    private static final Interner<String> STRINGS = Interners.newWeakInterner();
+
+    /** All indexes currently in memory, by full name of their job. */
+    private static final ConcurrentMap<String, VersionNumberIndex> INDEXES = new ConcurrentHashMap<>();
+
+    /** Maximum number of indexes whose entries are kept in memory. */
+    static final int MAX_RESIDENT = SystemProperties.getInteger(VersionNumberIndex.class.getName() + ".maxResident", 256);
+
+    /**
+     * Indexes whose entries are in memory, least recently used first. Locked
+     * by itself, always after the lock of an index, never before.
+     */
+    private static final Map<VersionNumberIndex, Boolean> RESIDENT = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** The job may be replaced by a new instance when it is reloaded from disk. */
+    private volatile Job<?, ?> job;
+
+    /** Index entries by build number; {@code null} until loaded. */
+    private NavigableMap<Integer, Entry> entries;
+
+    /** Number of records in the journal file, used to decide when to compact it. */
+    private int journalRecords;
+
+    /** Whether {@link #load(boolean)} is reading or rebuilding the index. */
+    private boolean loading;
+
+    /**
+     * Whether the index is not in memory yet, but being loaded or queued for
+     * loading in the background (see {@link #markPending()}).
+     */
+    private boolean pending;
+
+    /** Changes made while {@link #pending} or {@link #loading}, to apply to the loaded index. */
+    private List<Runnable> deferred;
+
+    /**
+     * Whether the entries are in the {@link VersionNumberReverseIndex}. They
+     * leave it along with the memory (see {@link #unload()}).
+     */
+    private boolean reverseIndexed;
+
+    /** Whether the journal could not be updated, so the entries must stay in memory. */
+    private boolean unsaved;
+
+    /** The highest {@link Entry#getAllocation()} of all entries. */
+    private int allocations;
+
+    /**
+     * The lowest number of a build which got its version-number after a build
+     * with a higher number, or {@link Integer#MAX_VALUE} if there is none. All
+     * builds below it got their version-numbers in the order of their numbers.
+     */
+    private int outOfOrder = Integer.MAX_VALUE;
+
+    /**
+     * Number of the build which got the last version-number starting with a
+     * given prefix (or {@code 0} if there is none), for the prefixes recently
+     * looked up. The prefix {@code null} stands for any version-number.
+     */
+    private final Map<String, Integer> latestByPrefix = new PrefixCache();
+
+    private VersionNumberIndex(Job<?, ?> job) {
+        this.job = job;
+    }
+
+    /**
+     * Creates an index of the given entries which is not backed by a job, for
+     * benchmarks. It must not be changed.
+     */
+    VersionNumberIndex(NavigableMap<Integer, Entry> entries) {
+        this.entries = entries;
+        order();
+    }
+
+    /**
+     * Returns the index of the given job.
+     *
+     * @param job The job.
+     * @return The (possibly not yet loaded) index of that job.
+     */
+    @NonNull
+    public static VersionNumberIndex of(@NonNull Job<?, ?> job) {
+        VersionNumberIndex index = INDEXES.computeIfAbsent(job.getFullName(), name -> new VersionNumberIndex(job));
+        index.job = job;
+        return index;
+    }
+
+    /**
+     * Drops the in-memory state of the index of the given job, so it gets read
+     * from disk again next time.
+     */
+    static void forget(@NonNull Job<?, ?> job) {
+        drop(INDEXES.remove(job.getFullName()));
+    }
+
+    private static void drop(@CheckForNull VersionNumberIndex index) {
+        if (index != null) {
+            synchronized (RESIDENT) {
+                RESIDENT.remove(index);
+            }
+            VersionNumberReverseIndex.removeAll(index);
+        }
+    }
+
+    @NonNull
+    Job<?, ?> getJob() {
+        return job;
+    }
+
+    /** Returns whether this is the index of its job, rather than a forgotten one. */
+    boolean isCurrent() {
+        return job != null && INDEXES.get(job.getFullName()) == this;
+    }
+
+    /**
+     * Returns the newest indexed build which is older than the given build number
+     * and whose version-number starts with the given prefix.
+     *
+     * @param number The number of the build whose predecessor is searched.
+     * @param prefix The prefix the version-number must start with, or {@code null}
+     *               if any version-number is fine.
+     * @return The entry of that build or {@code null} if there is none.
+     */
+    @CheckForNull
+    public synchronized Entry getPrevious(int number, @CheckForNull String prefix) {
+        ensureLoaded();
+        for (Entry entry : entries.headMap(number, false).descendingMap().values()) {
+            if (entry.matches(prefix)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the indexed build other than the given one which got the last
+     * version-number starting with the given prefix.
+     *
+     * <p>
+     * Unlike {@link #getPrevious(int, String)} this goes by the order in which
+     * the builds got their version-numbers rather than by build number, since
+     * concurrent builds do not necessarily get theirs in the order they were
+     * started. If the given build got the last one itself (e.g. in a previous
+     * step of a pipeline), this is the build which got one right before it.
+     * </p>
+     *
+     * @param number The number of the build whose predecessor is searched.
+     * @param prefix The prefix the version-number must start with, or {@code null}
+     *               if any version-number is fine.
+     * @return The entry of that build or {@code null} if there is none.
+     */
+    @CheckForNull
+    public synchronized Entry getLatest(int number, @CheckForNull String prefix) {
+        ensureLoaded();
+        int latest = getLatestMatching(prefix);
+        if (latest == number) {
+            latest = findLatest(entries, prefix, outOfOrder, entries.get(number));
+        }
+        return latest > 0 ? entries.get(latest) : null;
+    }
+
+    /** Returns the number of the build that got the last matching version-number or 0 if there is none. */
+    private int getLatestMatching(@CheckForNull String prefix) {
+        Integer latest = latestByPrefix.get(prefix);
+        if (latest == null) {
+            latest = findLatest(entries, prefix, outOfOrder, null);
+            latestByPrefix.put(prefix, latest);
+        }
+        return latest;
+    }
+
+    /**
+     * Returns the number of the build which got the last version-number
+     * starting with the given prefix, or 0 if there is none.
+     *
+     * @param outOfOrder See {@link #outOfOrder}: the search stops at the first
+     *                   match below it.
+     * @param before If not {@code null}, only builds which got their
+     *               version-number before this one count.
+     */
+    static int findLatest(NavigableMap<Integer, Entry> entries, @CheckForNull String prefix, int outOfOrder,
+                          @CheckForNull Entry before) {
+        Entry latest = null;
+        for (Entry entry : entries.descendingMap().values()) {
+            if (entry.matches(prefix) && (before == null || before.isAllocatedAfter(entry))
+                    && (latest == null || entry.isAllocatedAfter(latest))) {
+                latest = entry;
+            }
+            if (latest != null && entry.getNumber() < outOfOrder) {
+                // All builds further down got their version-numbers before this one.
+                break;
+            }
+        }
+        return latest != null ? latest.getNumber() : 0;
+    }
+
+    /**
+     * Recomputes {@link #allocations} and {@link #outOfOrder} after entries
+     * were loaded or imported.
+     */
+    private void order() {
+        allocations = 0;
+        outOfOrder = Integer.MAX_VALUE;
+        int lowestAbove = Integer.MAX_VALUE;
+        for (Entry entry : entries.descendingMap().values()) {
+            if (entry.getAllocation() > lowestAbove) {
+                outOfOrder = entry.getNumber();
+            }
+            lowestAbove = Math.min(lowestAbove, entry.getAllocation());
+            allocations = Math.max(allocations, entry.getAllocation());
+        }
+    }
+
+    /** Returns the allocation of a build getting its version-number right now. */
+    private int nextAllocation(int number) {
+        if (entries.higherKey(number) != null) {
+            outOfOrder = Math.min(outOfOrder, number);
+        }
+        return ++allocations;
+    }
+
+    /**
+     * Returns the entry of the given build.
+     *
+     * @param number The build number.
+     * @return The entry or {@code null} if the build is not indexed.
+     */
+    @CheckForNull
+    public synchronized Entry get(int number) {
+        ensureLoaded();
+        return entries.get(number);
+    }
+
+    /**
+     * Returns the entry of the given build if the index is in memory, without
+     * reading or rebuilding it otherwise.
+     */
+    @CheckForNull
+    synchronized Entry peek(int number) {
+        return entries != null ? entries.get(number) : null;
+    }
+
+    /**
+     * Returns the entries of the builds after the given one, oldest first, so
+     * all entries can be gone through a few at a time without holding the lock
+     * of the index meanwhile.
+     *
+     * @param after The build number to start after.
+     * @param max The maximum number of entries to return.
+     * @return The entries, none if there are no more.
+     */
+    @NonNull
+    public synchronized List<Entry> getEntries(int after, int max) {
+        ensureLoaded();
+        List<Entry> result = new ArrayList<>(Math.min(max, entries.size()));
+        for (Entry entry : entries.tailMap(after, false).values()) {
+            if (result.size() == max) {
+                break;
+            }
+            result.add(entry);
+        }
+        return result;
+    }
+
+    /**
+     * Adds entries of builds the job does not have, e.g. from its history on
+     * another controller, so its next build continues from them. Entries of
+     * builds which are indexed already are left alone.
+     *
+     * @param imported The entries.
+     * @return The entries added.
+     */
+    @NonNull
+    synchronized List<Entry> importEntries(@NonNull List<Entry> imported) {
+        if (deferred != null && entries != null) {
+            // Being rebuilt from a history which does not have them yet.
+            deferred.add(() -> importEntries(imported));
+        }
+        ensureLoaded();
+        NavigableMap<Integer, Entry> fresh = new TreeMap<>();
+        for (Entry entry : imported) {
+            if (!entries.containsKey(entry.getNumber())) {
+                fresh.putIfAbsent(entry.getNumber(), entry);
+            }
+        }
+        // Each ranks right after all builds with lower numbers, as if it had
+        // been built here after them.
+        List<Entry> added = new ArrayList<>(fresh.size());
+        Iterator<Entry> lower = entries.values().iterator();
+        Entry next = lower.hasNext() ? lower.next() : null;
+        int allocation = 0;
+        for (Entry entry : fresh.values()) {
+            while (next != null && next.getNumber() < entry.getNumber()) {
+                allocation = Math.max(allocation, next.getAllocation());
+                next = lower.hasNext() ? lower.next() : null;
+            }
+            added.add(entry.withAllocation(allocation));
+        }
+        StringBuilder records = new StringBuilder();
+        for (Entry entry : added) {
+            entries.put(entry.getNumber(), entry);
+            VersionNumberReverseIndex.add(this, entry);
+            records.append(entry.toRecord()).append('\n');
+        }
+        if (!added.isEmpty()) {
+            order();
+            latestByPrefix.clear();
+            append(records, added.size());
+        }
+        return added;
+    }
+
+    /**
+     * Records the version-number of the given build. Called right after a
+     * {@link VersionNumberAction} was attached, so the next build can see it
+     * even while this one is still running.
+     *
+     * @param run The build.
+     * @param prefix The prefix used to look up the predecessor of that build, if any.
+     */
+    public synchronized void record(@NonNull Run<?, ?> run, @CheckForNull String prefix) {
+        if (defer(() -> record(run, prefix))) {
+            return;
+        }
+        ensureLoaded();
+        update(run, prefix, true);
+    }
+
+    /**
+     * Refreshes the entry of the given build, e.g. when it has completed.
+     *
+     * @param run The build.
+     */
+    public synchronized void update(@NonNull Run<?, ?> run) {
+        if (defer(() -> update(run))) {
+            return;
+        }
+        ensureLoaded();
+        VersionNumberAction action = run.getAction(VersionNumberAction.class);
+        if (action != null) {
+            action.getInfo().computeAll();
+        }
+        update(run, null, false);
+    }
+
+    /**
+     * Removes the given build from the index. If the index is not in memory,
+     * this is only noted in its journal, rather than reading the index (or
+     * even rebuilding it) just for that.
+     *
+     * @param number The build number.
+     */
+    public synchronized void remove(int number) {
+        if (defer(() -> remove(number))) {
+            return;
+        }
+        if (entries == null) {
+            // Without a journal, rebuilding the index does not find the build anyway.
+            File file = getFile();
+            if (file.isFile()) {
+                write(file, "-\t" + number + '\n', 1);
+            }
+            return;
+        }
+        Entry removed = entries.remove(number);
+        if (removed != null) {
+            VersionNumberReverseIndex.remove(this, removed);
+            latestByPrefix.values().removeIf(latest -> latest == number);
+            append("-\t" + number + '\n', 1);
+        }
+    }
+
+    /**
+     * @param prefix The prefix of the build, unless it has one already: only
+     *               the first allocation within a build defines it.
+     * @param allocated Whether the build just got a version-number, rather
+     *                  than e.g. completed.
+     */
+    private void update(Run<?, ?> run, String prefix, boolean allocated) {
+        VersionNumberAction action = run.getAction(VersionNumberAction.class);
+        if (action == null) {
+            remove(run.getNumber());
+            return;
+        }
+        Entry previous = entries.get(run.getNumber());
+        Entry entry = new Entry(run.getNumber(), run.getTimeInMillis(), run.getResult(),
+                                action.getInfo(), action.getVersionNumber(),
+                                previous != null ? previous.getPrefix() : prefix,
+                                allocated || previous == null ? nextAllocation(run.getNumber()) : previous.getAllocation());
+        entries.put(entry.getNumber(), entry);
+        if (!entry.sameAs(previous)) {
+            if (previous != null) {
+                VersionNumberReverseIndex.remove(this, previous);
+            }
+            VersionNumberReverseIndex.add(this, entry);
+            for (Map.Entry<String, Integer> latest : latestByPrefix.entrySet()) {
+                if (entry.matches(latest.getKey())) {
+                    Entry current = entries.get(latest.getValue());
+                    if (current == null || entry.isAllocatedAfter(current)) {
+                        latest.setValue(entry.getNumber());
+                    }
+                } else if (entry.getNumber() == latest.getValue()) {
+                    latest.setValue(findLatest(entries, latest.getKey(), outOfOrder, null));
+                }
+            }
+            append(entry.toRecord() + '\n', 1);
+        }
+    }
+
+    /**
+     * Returns whether the index is being loaded in the background, or would
+     * have to be rebuilt from the build history, rather than being in memory
+     * or in its journal. Looking it up until then waits for that to complete.
+     */
+    public synchronized boolean isLoading() {
+        return pending || (entries == null && !getFile().isFile());
+    }
+
+    /**
+     * Marks the index as about to be loaded in the background, unless it is
+     * in memory or being loaded already. Until it is, changes are queued and
+     * lookups wait for it, rather than loading it themselves.
+     *
+     * @return Whether the index got marked, so it has to be loaded now.
+     */
+    synchronized boolean markPending() {
+        if (entries != null || pending) {
+            return false;
+        }
+        pending = true;
+        deferred = new ArrayList<>();
+        return true;
+    }
+
+    /**
+     * Drops the mark of {@link #markPending()} if no changes are waiting for
+     * the index, e.g. since its job does not use version-numbers.
+     *
+     * @return Whether the index does not need to be loaded anymore.
+     */
+    synchronized boolean cancelPending() {
+        if (!pending || loading) {
+            return true;
+        }
+        if (!deferred.isEmpty()) {
+            return false;
+        }
+        pending = false;
+        deferred = null;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Queues the given change if the index is being loaded.
+     *
+     * @return Whether the change is left to the loading, since the index is not
+     *         in memory yet. If it is (and just being rebuilt), the change has to
+     *         be made right away as well.
+     */
+    private boolean defer(Runnable change) {
+        if (deferred == null) {
+            return false;
+        }
+        deferred.add(change);
+        return entries == null;
+    }
+
+    /**
+     * Loads the index unless it already is, without holding its lock while
+     * reading the journal or the build history, so the builds of the job do not
+     * wait for it.
+     *
+     * @param rebuild Whether to rebuild the index from the build history, even
+     *                if it is loaded already or the journal can be read.
+     * @return Whether the index was loaded, as opposed to being in memory or
+     *         being loaded by someone else already.
+     */
+    boolean load(boolean rebuild) {
+        synchronized (this) {
+            if (loading || (entries != null && !rebuild)) {
+                return false;
+            }
+            loading = true;
+            pending = entries == null;
+            if (deferred == null) {
+                deferred = new ArrayList<>();
+            }
+        }
+        NavigableMap<Integer, Entry> loaded = null;
+        boolean scanned = false;
+        try {
+            File file = getFile();
+            if (!rebuild && file.isFile()) {
+                try {
+                    // Nobody else touches the journal before the index is in memory.
+                    loaded = read(file);
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Version-number index of " + job.getFullName() + " is corrupt. Rebuilding it.", e);
+                }
+            }
+            if (loaded == null) {
+                loaded = scan(job);
+                scanned = true;
+            }
+        } finally {
+            synchronized (this) {
+                List<Runnable> changes = deferred;
+                deferred = null;
+                loading = false;
+                pending = false;
+                if (loaded != null) {
+                    if (reverseIndexed) {
+                        VersionNumberReverseIndex.removeAll(this);
+                        reverseIndexed = false;
+                    }
+                    setEntries(loaded);
+                    if (scanned) {
+                        compact();
+                    }
+                }
+                notifyAll();
+                // Without an index (e.g. it failed to load) the changes load it.
+                changes.forEach(Runnable::run);
+            }
+        }
+        return true;
+    }
+
+    private File getFile() {
+        return new File(job.getRootDir(), FILE_NAME);
+    }
+
+    private void ensureLoaded() {
+        boolean interrupted = false;
+        // While rebuilding, the index in memory serves until the new one is done.
+        while (pending) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (loadJournal()) {
+            return;
+        }
+        if (reverseIndexed) {
+            // The journal is gone, so what it had cannot be trusted either.
+            VersionNumberReverseIndex.removeAll(this);
+            reverseIndexed = false;
+        }
+        setEntries(scan(job));
+        compact();
+    }
+
+    /**
+     * Makes sure the index is in memory, as long as that does not need the
+     * build history: the journal is read if need be, but the index is not
+     * rebuilt if the journal is missing or corrupt. This way looking up a
+     * build never has to wait for the index to be rebuilt.
+     *
+     * @return Whether the index is in memory. If not, it has to be loaded
+     *         with {@link #load(boolean)}, unless that is done already.
+     */
+    synchronized boolean loadJournal() {
+        if (pending) {
+            return false;
+        }
+        if (entries != null) {
+            touch();
+            return true;
+        }
+        File file = getFile();
+        if (file.isFile()) {
+            try {
+                setEntries(read(file));
+                return true;
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Version-number index of " + job.getFullName() + " is corrupt. Rebuilding it.", e);
+            }
+        }
+        return false;
+    }
+
+    private void setEntries(NavigableMap<Integer, Entry> loaded) {
+        entries = loaded;
+        order();
+        latestByPrefix.clear();
+        if (!reverseIndexed) {
+            VersionNumberReverseIndex.addAll(this, entries.values());
+            reverseIndexed = true;
+        }
+        touch();
+    }
+
+    /**
+     * Marks the index as used just now, and drops the entries of the indexes
+     * not used for the longest time if there are too many in memory. They are
+     * dropped in the background, as this holds the lock of this index.
+     */
+    private void touch() {
+        if (job == null) {
+            return;  // Not backed by a job, so there is no journal to read it from again.
+        }
+        List<VersionNumberIndex> evicted = null;
+        synchronized (RESIDENT) {
+            RESIDENT.put(this, Boolean.TRUE);
+            Iterator<VersionNumberIndex> eldest = RESIDENT.keySet().iterator();
+            while (RESIDENT.size() > MAX_RESIDENT) {
+                if (evicted == null) {
+                    evicted = new ArrayList<>();
+                }
+                evicted.add(eldest.next());
+                eldest.remove();
+            }
+        }
+        if (evicted != null) {
+            List<VersionNumberIndex> unloaded = evicted;
+            Timer.get().submit(() -> unloaded.forEach(VersionNumberIndex::unload));
+        }
+    }
+
+    /**
+     * Drops the entries from memory, unless the index was used again since it
+     * was picked for that or is being loaded. The journal is up-to-date, so
+     * they can be read from it again.
+     */
+    private synchronized void unload() {
+        synchronized (RESIDENT) {
+            if (RESIDENT.containsKey(this)) {
+                return;
+            }
+        }
+        if (entries == null || loading || deferred != null || unsaved) {
+            return;
+        }
+        entries = null;
+        latestByPrefix.clear();
+        if (reverseIndexed) {
+            VersionNumberReverseIndex.removeAll(this);
+            reverseIndexed = false;
+        }
+    }
+
+    private NavigableMap<Integer, Entry> read(File file) throws IOException {
+        NavigableMap<Integer, Entry> result = new TreeMap<>();
+        int records = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (!HEADER.equals(header) && !HEADER_1.equals(header)) {
+                throw new IOException("Unknown format of " + file);
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("-\t")) {
+                    result.remove(Integer.valueOf(line.substring(2)));
+                } else {
+                    Entry entry = Entry.fromRecord(line);
+                    result.put(entry.getNumber(), entry);
+                }
+                records++;
+            }
+        }
+        journalRecords = records;
+        return result;
+    }
+
+    private static NavigableMap<Integer, Entry> scan(Job<?, ?> job) {
+        LOGGER.info("Building version-number index of " + job.getFullName());
+        NavigableMap<Integer, Entry> result = new TreeMap<>();
+        for (Run<?, ?> run : job.getBuilds()) {
+            VersionNumberAction action = run.getAction(VersionNumberAction.class);
+            if (action != null) {
+                result.put(run.getNumber(), Entry.of(run, action));
+            }
+        }
+        File imported = new File(job.getRootDir(), VersionNumberHistory.IMPORTED_FILE_NAME);
+        if (imported.isFile()) {
+            try {
+                VersionNumberHistory.read(imported, batch -> {
+                    for (Entry entry : batch) {
+                        result.putIfAbsent(entry.getNumber(), entry);
+                    }
+                });
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to read imported version-number history of " + job.getFullName(), e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Appends the given records, each ending with a newline, to the journal.
+     */
+    private void append(CharSequence records, int count) {
+        if (journalRecords > 2 * entries.size() + 100) {
+            compact();
+            return;
+        }
+        File file = getFile();
+        if (!file.isFile()) {
+            compact();
+            return;
+        }
+        if (!write(file, records, count)) {
+            unsaved = true;
+        }
+    }
+
+    /**
+     * Appends the given records to the journal as they are.
+     *
+     * @return Whether that worked.
+     */
+    private boolean write(File file, CharSequence records, int count) {
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.APPEND)) {
+            writer.append(records);
+            journalRecords += count;
+            return true;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to update version-number index of " + job.getFullName(), e);
+            return false;
+        }
+    }
+
+    private void compact() {
+        File file = getFile();
+        try {
+            AtomicFileWriter writer = new AtomicFileWriter(file.toPath(), StandardCharsets.UTF_8);
+            try {
+                writer.write(HEADER);
+                writer.write('\n');
+                for (Entry entry : entries.values()) {
+                    writer.write(entry.toRecord());
+                    writer.write('\n');
+                }
+                writer.commit();
+            } finally {
+                writer.abort();
+            }
+            journalRecords = entries.size();
+            unsaved = false;
+        } catch (IOException e) {
+            unsaved = true;
+            LOGGER.log(Level.WARNING, "Failed to write version-number index of " + job.getFullName(), e);
+        }
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return NULL_VALUE;
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': sb.append("\\\\"); break;
+                case '\t': sb.append("\\t"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                default:   sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String unescape(String value) {
+        if (NULL_VALUE.equals(value)) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\') {
+                char next = value.charAt(++i);
+                switch (next) {
+                    case '\\': sb.append('\\'); break;
+                    case 't':  sb.append('\t'); break;
+                    case 'n':  sb.append('\n'); break;
+                    case 'r':  sb.append('\r'); break;
+                    default:   throw new IllegalArgumentException("Invalid escape sequence in '" + value + "'");
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Size-bounded map of the prefixes most recently looked up.
+     */
+    private static final class PrefixCache extends LinkedHashMap<String, Integer> {
+        private static final long serialVersionUID = 1L;
+
+        /** Every update of the index checks all cached prefixes, so keep them few. */
+        private static final int MAX_PREFIXES = 64;
+
+        PrefixCache() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_PREFIXES;
+        }
+    }
+
+    /**
+     * The version-number information of a single build.
+     *
+     * <p>
+     * There is one for every build with a version-number, so the counters are
+     * kept packed into a single <code>long</code> if possible, and the
+     * version-number is split into a head shared with other builds (e.g.
+     * <code>1.0.</code>) and a numeric tail (e.g. <code>4711</code>).
+     * </p>
+     */
+    public static final class Entry {
+        private final int number;
+        private final long timestamp;
+        private final Result result;
+        /** See {@link VersionNumberBuildInfo#getPacked()}. */
+        private final long packedInfo;
+        /** The counters, if they cannot be packed. */
+        private final VersionNumberBuildInfo info;
+        /** The version-number up to {@link #versionTail}, or all of it. */
+        private final String versionHead;
+        /** The number the version-number ends with, or {@code -1}. */
+        private final int versionTail;
+        private final String prefix;
+        /** See {@link #getAllocation()}. */
+        private final int allocation;
+
+        Entry(int number, long timestamp, Result result, VersionNumberBuildInfo info, String versionNumber, String prefix) {
+            this(number, timestamp, result, info, versionNumber, prefix, 0);
+        }
+
+        Entry(int number, long timestamp, Result result, VersionNumberBuildInfo info, String versionNumber, String prefix,
+              int allocation) {
+            this.number = number;
+            this.timestamp = timestamp;
+            this.result = result;
+            this.packedInfo = info != null ? info.getPacked() : -1;
+            this.info = packedInfo < 0 ? info : null;
+            int tail = versionNumber != null ? numericTail(versionNumber) : -1;
+            if (tail >= 0 && tail < versionNumber.length()) {
+                this.versionHead = STRINGS.intern(versionNumber.substring(0, tail));
+                this.versionTail = Integer.parseInt(versionNumber.substring(tail));
+            } else {
+                this.versionHead = versionNumber != null ? STRINGS.intern(versionNumber) : null;
+                this.versionTail = -1;
+            }
+            this.prefix = prefix != null ? STRINGS.intern(prefix) : null;
+            this.allocation = allocation;
+        }
+
+        private Entry(Entry entry, int allocation) {
+            this.number = entry.number;
+            this.timestamp = entry.timestamp;
+            this.result = entry.result;
+            this.packedInfo = entry.packedInfo;
+            this.info = entry.info;
+            this.versionHead = entry.versionHead;
+            this.versionTail = entry.versionTail;
+            this.prefix = entry.prefix;
+            this.allocation = allocation;
+        }
+
+        /** Returns this entry with the given {@link #getAllocation()}. */
+        Entry withAllocation(int allocation) {
+            return allocation == this.allocation ? this : new Entry(this, allocation);
+        }
+
+        /**
+         * Returns the entry of the given build as it is right now.
+         *
+         * @param run The build.
+         * @param action Its {@link VersionNumberAction}.
+         */
+        static Entry of(Run<?, ?> run, VersionNumberAction action) {
+            return new Entry(run.getNumber(), run.getTimeInMillis(), run.getResult(),
+                             action.getInfo(), action.getVersionNumber(), null);
+        }
+
+        /**
+         * Returns whether the entry tells all a next build needs to know: the
+         * final result and the counters. Otherwise the build was still running
+         * when it was last recorded.
+         */
+        boolean isComplete() {
+            return result != null && (packedInfo >= 0 || info != null);
+        }
+
+        /**
+         * Returns where the number the given string ends with starts, or the
+         * length of the string if it does not end with a number which
+         * {@link Integer#toString(int)} gives back as is.
+         */
+        private static int numericTail(String s) {
+            int start = s.length();
+            while (start > 0 && s.charAt(start - 1) >= '0' && s.charAt(start - 1) <= '9') {
+                start--;
+            }
+            int digits = s.length() - start;
+            if (digits == 0 || digits > 9 || (digits > 1 && s.charAt(start) == '0')) {
+                return s.length();
+            }
+            return start;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /** Returns the result of the build or {@code null} if it is still running. */
+        @CheckForNull
+        public Result getResult() {
+            return result;
+        }
+
+        /**
+         * Returns the counters of the build or {@code null} if they were not
+         * computed yet when the build was last recorded.
+         */
+        @CheckForNull
+        public VersionNumberBuildInfo getInfo() {
+            return packedInfo >= 0 ? VersionNumberBuildInfo.ofPacked(packedInfo) : info;
+        }
+
+        public String getVersionNumber() {
+            return versionTail < 0 ? versionHead : versionHead + versionTail;
+        }
+
+        /** Returns the prefix used to look up the predecessor of the build, if any. */
+        @CheckForNull
+        public String getPrefix() {
+            return prefix;
+        }
+
+        /**
+         * Returns when the build got its version-number, relative to the other
+         * builds of the job: the higher, the later. Builds indexed from the
+         * build history rather than as they got their version-numbers have
+         * {@code 0}, and count in the order of their numbers.
+         */
+        int getAllocation() {
+            return allocation;
+        }
+
+        /** Returns whether the build got its version-number after the given one. */
+        boolean isAllocatedAfter(Entry other) {
+            return allocation != other.allocation ? allocation > other.allocation : number > other.number;
+        }
+
+        boolean matches(@CheckForNull String prefix) {
+            if (prefix == null) {
+                return true;
+            }
+            if (versionHead == null) {
+                return false;
+            }
+            if (versionTail < 0 || prefix.length() <= versionHead.length()) {
+                return versionHead.startsWith(prefix);
+            }
+            String tail = Integer.toString(versionTail);
+            int rest = prefix.length() - versionHead.length();
+            return prefix.startsWith(versionHead) && rest <= tail.length()
+                    && prefix.regionMatches(versionHead.length(), tail, 0, rest);
+        }
+
+        String toRecord() {
+            // Counters not computed yet get recorded once the build has completed.
+            VersionNumberBuildInfo info = getInfo();
+            String counters = info != null && info.isComputed() ? info.format() : NULL_VALUE;
+            return "+\t" + number + '\t' + timestamp + '\t' + (result != null ? result.toString() : NULL_VALUE) + '\t'
+                    + counters + '\t' + escape(prefix) + '\t' + escape(getVersionNumber()) + '\t' + allocation;
+        }
+
+        static Entry fromRecord(String record) {
+            String[] fields = record.split("\t", -1);
+            // Records of the first version of the journal end with the version-number.
+            if ((fields.length != 7 && fields.length != 8) || !"+".equals(fields[0])) {
+                throw new IllegalArgumentException("Invalid record '" + record + "'");
+            }
+            VersionNumberBuildInfo info = NULL_VALUE.equals(fields[4]) ? null : VersionNumberBuildInfo.parse(fields[4]);
+            return new Entry(Integer.parseInt(fields[1]),
+                             Long.parseLong(fields[2]),
+                             NULL_VALUE.equals(fields[3]) ? null : Result.fromString(fields[3]),
+                             info,
+                             unescape(fields[6]),
+                             unescape(fields[5]),
+                             fields.length > 7 ? Integer.parseInt(fields[7]) : 0);
+        }
+
+        boolean sameAs(@CheckForNull Entry other) {
+            return other != null && toRecord().equals(other.toRecord());
+        }
+    }
+
+    /**
+     * Keeps the indexes up-to-date when builds complete or get deleted.
+     */
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run<?, ?>> {
+        @Override
+        public void onCompleted(Run<?, ?> run, @NonNull TaskListener listener) {
+            if (run.getAction(VersionNumberAction.class) != null) {
+                of(run.getParent()).update(run);
+            }
+        }
+
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            if (run.getAction(VersionNumberAction.class) != null) {
+                of(run.getParent()).remove(run.getNumber());
+            }
+        }
+    }
+
+    /**
+     * Keeps track of renamed, moved and deleted jobs.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            VersionNumberIndex index = INDEXES.remove(oldFullName);
+            if (index != null && item instanceof Job) {
+                index.job = (Job<?, ?>) item;
+                INDEXES.put(newFullName, index);
+            }
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            drop(INDEXES.remove(item.getFullName()));
+        }
+    }
+}
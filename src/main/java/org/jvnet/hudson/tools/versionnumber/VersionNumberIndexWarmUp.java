@@ -0,0 +1,262 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.StaplerResponse2;
+import org.kohsuke.stapler.verb.POST;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.ManagementLink;
+import hudson.model.Run;
+import hudson.model.listeners.ItemListener;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.security.Permission;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Loads the {@link VersionNumberIndex} of every job using version-numbers in
+ * the background once the controller has loaded its jobs, so the first build of
+ * each job after a restart does not have to.
+ *
+ * <p>
+ * The indexes are loaded by a few low-priority threads. Each index is marked
+ * as pending when it is queued, so builds starting before the index of their
+ * job is loaded walk the build history rather than waiting for it or loading
+ * it themselves (see {@link VersionNumberIndex#isLoading()}). The same goes for
+ * indexes which have to be rebuilt from the build history later on: they are
+ * loaded here as well (see {@link #load(VersionNumberIndex)}). The progress is shown at
+ * <code>/manage/versionnumber-index/</code>, where administrators can also
+ * rebuild all indexes from the build histories.
+ * </p>
+ * <p>
+ * Of all indexes loaded, only the ones used last stay in memory (see
+ * {@link VersionNumberIndex#MAX_RESIDENT}). The others then have an up-to-date
+ * journal, so loading them again does not need the build history.
+ * </p>
+ */
+@Extension
+public class VersionNumberIndexWarmUp extends ManagementLink {
+
+    /** Use Java 7 MethodHandles to get my class for logger. */
+    private static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getCanonicalName());
+
+    /** Maximum number of indexes loaded at the same time. */
+    private static final int THREADS = SystemProperties.getInteger(VersionNumberIndexWarmUp.class.getName() + ".threads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 4));
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(THREADS, VersionNumberIndexWarmUp::newThread, null, false);
+
+    /** The current or last warm-up, {@code null} before the first one. */
+    private static volatile Progress progress;
+
+    private static ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("VersionNumberIndexWarmUp-" + thread.getPoolIndex());
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    }
+
+    /**
+     * Starts loading the indexes of all jobs, superseding a warm-up still in
+     * progress.
+     *
+     * @param rebuild Whether to rebuild the indexes from the build histories,
+     *                rather than reading their journals.
+     */
+    static synchronized Progress start(boolean rebuild) {
+        List<Job> jobs;
+        try (ACLContext ctx = ACL.as2(ACL.SYSTEM2)) {
+            jobs = Jenkins.get().getAllItems(Job.class);
+        }
+        Progress started = new Progress(rebuild, jobs.size());
+        progress = started;
+        for (Job job : jobs) {
+            VersionNumberIndex.of(job).markPending();
+            POOL.execute(() -> started.warm(job));
+        }
+        return started;
+    }
+
+    /**
+     * Loads the given index in the background, unless it is being loaded
+     * already.
+     */
+    static void load(VersionNumberIndex index) {
+        if (index.markPending()) {
+            POOL.execute(() -> {
+                try {
+                    index.load(false);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to load version-number index of " + index.getJob().getFullName(), e);
+                }
+            });
+        }
+    }
+
+    /** Returns the current or last warm-up, or {@code null} if there was none. */
+    @CheckForNull
+    public Progress getProgress() {
+        return progress;
+    }
+
+    @POST
+    public void doRebuild(StaplerRequest2 req, StaplerResponse2 rsp) throws IOException {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        start(true);
+        rsp.sendRedirect2(".");
+    }
+
+    @Override
+    public String getIconFileName() {
+        return VersionNumberAction.ICON;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Version Number Indexes";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Progress of loading the version-number indexes of all jobs, and rebuilding them.";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "versionnumber-index";
+    }
+
+    @Override
+    public Permission getRequiredPermission() {
+        return Jenkins.SYSTEM_READ;
+    }
+
+    @Override
+    public Category getCategory() {
+        return Category.STATUS;
+    }
+
+    /**
+     * The progress of loading the indexes of all jobs.
+     */
+    public static final class Progress {
+        private final boolean rebuild;
+        private final long started = System.currentTimeMillis();
+        private final int total;
+        private final AtomicInteger done = new AtomicInteger();
+        private final AtomicInteger loaded = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private volatile long finished;
+
+        Progress(boolean rebuild, int total) {
+            this.rebuild = rebuild;
+            this.total = total;
+            if (total == 0) {
+                finished = started;
+            }
+        }
+
+        private void warm(Job<?, ?> job) {
+            try {
+                if (progress != this) {
+                    return;  // Superseded by another warm-up.
+                }
+                VersionNumberIndex index = VersionNumberIndex.of(job);
+                // A job not using version-numbers is left alone, unless one of
+                // its builds got one in the meantime.
+                if ((usesVersionNumbers(job) || !index.cancelPending()) && index.load(rebuild)) {
+                    loaded.incrementAndGet();
+                }
+            } catch (RuntimeException e) {
+                failed.incrementAndGet();
+                LOGGER.log(Level.WARNING, "Failed to load version-number index of " + job.getFullName(), e);
+            } finally {
+                if (done.incrementAndGet() == total) {
+                    finished = System.currentTimeMillis();
+                    LOGGER.log(Level.INFO, "{0} {1} version-number indexes in {2} ms",
+                            new Object[] {rebuild ? "Rebuilt" : "Loaded", loaded.get(), finished - started});
+                }
+            }
+        }
+
+        /**
+         * Returns whether the job has an index or its last build has a
+         * version-number, without looking at any other build.
+         */
+        private static boolean usesVersionNumbers(Job<?, ?> job) {
+            if (new File(job.getRootDir(), VersionNumberIndex.FILE_NAME).isFile()) {
+                return true;
+            }
+            try {
+                Run<?, ?> lastBuild = job.getLastBuild();
+                return lastBuild != null && lastBuild.getAction(VersionNumberAction.class) != null;
+            } catch (RuntimeException e) {
+                // Rather load the index than leave builds waiting for it.
+                LOGGER.log(Level.WARNING, "Failed to load the last build of " + job.getFullName(), e);
+                return true;
+            }
+        }
+
+        public boolean isRebuild() {
+            return rebuild;
+        }
+
+        public boolean isRunning() {
+            return finished == 0 && progress == this;
+        }
+
+        public Date getStarted() {
+            return new Date(started);
+        }
+
+        /** Returns how long it took, or takes so far, in milliseconds. */
+        public long getDuration() {
+            return (finished != 0 ? finished : System.currentTimeMillis()) - started;
+        }
+
+        /** Returns the number of jobs. */
+        public int getTotal() {
+            return total;
+        }
+
+        /** Returns the number of jobs done with, whether they use version-numbers or not. */
+        public int getDone() {
+            return done.get();
+        }
+
+        /** Returns the number of indexes loaded, as opposed to found in memory already. */
+        public int getLoaded() {
+            return loaded.get();
+        }
+
+        public int getFailed() {
+            return failed.get();
+        }
+    }
+
+    /**
+     * Starts the warm-up once all jobs are loaded.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onLoaded() {
+            start(false);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import jakarta.servlet.ServletException;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.StaplerResponse2;
+import org.kohsuke.stapler.verb.GET;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.RootAction;
+import hudson.search.Search;
+import hudson.search.SearchFactory;
+import hudson.search.SearchIndex;
+import hudson.search.SearchItem;
+import hudson.search.SearchResult;
+import hudson.search.SearchableModelObject;
+import hudson.search.SuggestedItem;
+import jenkins.model.Jenkins;
+
+import org.jvnet.hudson.tools.versionnumber.VersionNumberReverseIndex.Ref;
+
+/**
+ * Finds the builds which got a version-number (see
+ * {@link VersionNumberReverseIndex}), as JSON at
+ * <code>/versionnumber-lookup/?version=1.2.3</code> and from the search box.
+ * Only builds of jobs the user may read are listed.
+ */
+@Extension
+public class VersionNumberLookupAction implements RootAction {
+
+    @Override
+    public String getIconFileName() {
+        return null;  // Not shown in the UI.
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Version Number Lookup";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "versionnumber-lookup";
+    }
+
+    @GET
+    public void doIndex(StaplerRequest2 req, StaplerResponse2 rsp) throws IOException {
+        Jenkins.get().checkPermission(Jenkins.READ);
+        String versionNumber = req.getParameter("version");
+        if (versionNumber == null || versionNumber.isEmpty()) {
+            rsp.sendError(400, "Missing parameter 'version'");
+            return;
+        }
+        JSONArray builds = new JSONArray();
+        for (Ref ref : find(versionNumber)) {
+            JSONObject build = new JSONObject();
+            build.put("job", ref.getJob().getFullName());
+            build.put("number", ref.getNumber());
+            build.put("url", ref.getUrl());
+            builds.add(build);
+        }
+        JSONObject json = new JSONObject();
+        json.put("version", versionNumber);
+        json.put("builds", builds);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().write(json.toString(2));
+    }
+
+    /** Returns the builds with the given version-number the user may see. */
+    static List<Ref> find(String versionNumber) {
+        List<Ref> result = new ArrayList<>();
+        for (Ref ref : VersionNumberReverseIndex.find(versionNumber)) {
+            if (ref.getJob().hasPermission(Item.READ)) {
+                result.add(ref);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Lets the search box jump to the build with the version-number searched
+     * for, and suggest the builds if there are several.
+     */
+    static final class VersionNumberSearch extends Search {
+        @Override
+        public void doIndex(StaplerRequest2 req, StaplerResponse2 rsp) throws IOException, ServletException {
+            String query = req.getParameter("q");
+            if (query != null) {
+                List<Ref> builds = find(query.trim());
+                if (builds.size() == 1) {
+                    rsp.sendRedirect2(req.getContextPath() + '/' + builds.get(0).getUrl());
+                    return;
+                }
+            }
+            super.doIndex(req, rsp);
+        }
+
+        @Override
+        public SearchResult getSuggestions(StaplerRequest2 req, String query) {
+            SearchResult result = super.getSuggestions(req, query);
+            if (query != null) {
+                for (Ref ref : find(query.trim())) {
+                    result.add(new SuggestedItem(new BuildItem(query.trim(), ref)));
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A build found by its version-number.
+     */
+    private static final class BuildItem implements SearchItem {
+        private final String versionNumber;
+        private final Ref ref;
+
+        BuildItem(String versionNumber, Ref ref) {
+            this.versionNumber = versionNumber;
+            this.ref = ref;
+        }
+
+        @Override
+        public String getSearchName() {
+            return versionNumber + " (" + ref + ")";
+        }
+
+        @Override
+        public String getSearchUrl() {
+            return '/' + ref.getUrl();
+        }
+
+        @Override
+        public SearchIndex getSearchIndex() {
+            return SearchIndex.EMPTY;
+        }
+    }
+
+    /**
+     * Adds the version-numbers to the search of the top-level page.
+     */
+    @Extension
+    public static final class SearchFactoryImpl extends SearchFactory {
+        @Override
+        public Search createFor(SearchableModelObject owner) {
+            return owner instanceof Jenkins ? new VersionNumberSearch() : null;
+        }
+    }
+}
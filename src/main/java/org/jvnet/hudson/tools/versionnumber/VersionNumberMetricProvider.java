@@ -0,0 +1,51 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+
+import hudson.Extension;
+import jenkins.metrics.api.MetricProvider;
+
+import org.jvnet.hudson.tools.versionnumber.VersionNumberMetrics.Histogram;
+import org.jvnet.hudson.tools.versionnumber.VersionNumberMetrics.Stage;
+
+/**
+ * Publishes the {@link VersionNumberMetrics} to the Metrics plugin, if that is
+ * installed. Durations are in nanoseconds.
+ */
+@Extension(optional = true)
+public class VersionNumberMetricProvider extends MetricProvider {
+
+    private final MetricSet metricSet;
+
+    public VersionNumberMetricProvider() {
+        Map<String, Metric> metrics = new HashMap<>();
+        for (Stage stage : Stage.values()) {
+            addHistogram(metrics, "versionnumber." + stage.getKey() + ".duration", VersionNumberMetrics.getStage(stage));
+        }
+        addHistogram(metrics, "versionnumber.lookup.runsVisited", VersionNumberMetrics.getRunsVisited());
+        metrics.put("versionnumber.lookup.staleEntries", (Gauge<Long>) VersionNumberMetrics::getStaleEntries);
+        metrics.put("versionnumber.failures", (Gauge<Long>) VersionNumberMetrics::getFailures);
+        Map<String, Metric> unmodifiable = Collections.unmodifiableMap(metrics);
+        this.metricSet = () -> unmodifiable;
+    }
+
+    private static void addHistogram(Map<String, Metric> metrics, String name, Histogram histogram) {
+        metrics.put(name + ".count", (Gauge<Long>) histogram::getCount);
+        metrics.put(name + ".mean", (Gauge<Double>) histogram::getMean);
+        metrics.put(name + ".max", (Gauge<Long>) histogram::getMax);
+        metrics.put(name + ".p50", (Gauge<Long>) () -> histogram.getPercentile(0.5));
+        metrics.put(name + ".p95", (Gauge<Long>) () -> histogram.getPercentile(0.95));
+        metrics.put(name + ".p99", (Gauge<Long>) () -> histogram.getPercentile(0.99));
+    }
+
+    @Override
+    public MetricSet getMetricSet() {
+        return metricSet;
+    }
+}
@@ -0,0 +1,194 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.sf.json.JSONObject;
+
+/**
+ * Timings and counters of the version-number computation, since the controller
+ * started.
+ *
+ * <p>
+ * They are served as JSON by {@link VersionNumberMetricsAction} and published
+ * to the Metrics plugin by {@link VersionNumberMetricProvider} if that is
+ * installed.
+ * </p>
+ */
+public final class VersionNumberMetrics {
+
+    /**
+     * The stages of computing a version-number.
+     */
+    public enum Stage {
+        /** Resolving the environment-variables of the build. */
+        ENVIRONMENT,
+        /** Waiting for other builds of the job to get their version-number. */
+        LOCK,
+        /** Looking up the previous build with a version-number. */
+        LOOKUP,
+        /** Computing the counters. */
+        COUNTERS,
+        /** Formatting the version-number. */
+        FORMAT,
+        /** Recording the overrides used by the build. */
+        SAVE,
+        /** All of the above. */
+        TOTAL;
+
+        String getKey() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    private static final Histogram[] STAGES = new Histogram[Stage.values().length];
+    /** Number of builds looked at per lookup of the previous build. */
+    private static final Histogram RUNS_VISITED = new Histogram();
+    /** Number of index entries dropped because their build was gone. */
+    private static final LongAdder STALE_ENTRIES = new LongAdder();
+    /** Number of failed version-number computations. */
+    private static final LongAdder FAILURES = new LongAdder();
+
+    static {
+        for (int i = 0; i < STAGES.length; i++) {
+            STAGES[i] = new Histogram();
+        }
+    }
+
+    private VersionNumberMetrics() {
+    }
+
+    /**
+     * Records the duration of a stage.
+     *
+     * @param startNanos When the stage started, as {@link System#nanoTime()}.
+     */
+    static void record(Stage stage, long startNanos) {
+        STAGES[stage.ordinal()].add(System.nanoTime() - startNanos);
+    }
+
+    static void recordLookup(int runsVisited, int staleEntries) {
+        RUNS_VISITED.add(runsVisited);
+        if (staleEntries > 0) {
+            STALE_ENTRIES.add(staleEntries);
+        }
+    }
+
+    static void recordFailure() {
+        FAILURES.increment();
+    }
+
+    public static Histogram getStage(Stage stage) {
+        return STAGES[stage.ordinal()];
+    }
+
+    public static Histogram getRunsVisited() {
+        return RUNS_VISITED;
+    }
+
+    public static long getStaleEntries() {
+        return STALE_ENTRIES.sum();
+    }
+
+    public static long getFailures() {
+        return FAILURES.sum();
+    }
+
+    /**
+     * Returns all metrics as JSON, durations in nanoseconds.
+     */
+    public static JSONObject toJSON() {
+        JSONObject stages = new JSONObject();
+        for (Stage stage : Stage.values()) {
+            stages.put(stage.getKey(), getStage(stage).toJSON());
+        }
+        JSONObject json = new JSONObject();
+        json.put("stages", stages);
+        json.put("runsVisited", RUNS_VISITED.toJSON());
+        json.put("staleEntries", getStaleEntries());
+        json.put("failures", getFailures());
+        return json;
+    }
+
+    /**
+     * A lock-free histogram of non-negative values, in buckets of powers of two.
+     * Percentiles are the upper bound of the bucket they fall into, so they are
+     * accurate within a factor of two.
+     */
+    public static final class Histogram {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+        /** Bucket <i>i</i> counts the values of bit-length <i>i</i>. */
+        private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+
+        void add(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            count.increment();
+            sum.add(value);
+            max.accumulateAndGet(value, Math::max);
+            buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(value));
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long n = getCount();
+            return n > 0 ? (double) getSum() / n : 0;
+        }
+
+        /**
+         * Returns the (approximate) value below which the given fraction of all
+         * values lie.
+         *
+         * @param quantile The fraction, between 0 and 1.
+         */
+        public long getPercentile(double quantile) {
+            long total = 0;
+            long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    long upper = i == 0 ? 0 : (1L << i) - 1;
+                    return Math.min(upper, getMax());
+                }
+            }
+            return getMax();
+        }
+
+        JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("count", getCount());
+            json.put("sum", getSum());
+            json.put("mean", getMean());
+            json.put("max", getMax());
+            json.put("p50", getPercentile(0.5));
+            json.put("p95", getPercentile(0.95));
+            json.put("p99", getPercentile(0.99));
+            return json;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import java.io.IOException;
+
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.StaplerResponse2;
+import org.kohsuke.stapler.verb.GET;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+
+/**
+ * Serves the {@link VersionNumberMetrics} as JSON at
+ * <code>/versionnumber-metrics/</code>, for users with the
+ * <i>Overall/SystemRead</i> permission.
+ */
+@Extension
+public class VersionNumberMetricsAction implements RootAction {
+
+    @Override
+    public String getIconFileName() {
+        return null;  // Not shown in the UI.
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Version Number Metrics";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "versionnumber-metrics";
+    }
+
+    @GET
+    public void doIndex(StaplerRequest2 req, StaplerResponse2 rsp) throws IOException {
+        Jenkins.get().checkPermission(Jenkins.SYSTEM_READ);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().write(VersionNumberMetrics.toJSON().toString(2));
+    }
+}
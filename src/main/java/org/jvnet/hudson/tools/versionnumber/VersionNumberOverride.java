@@ -0,0 +1,115 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * The override of a counter: none, a literal number or a reference to an
+ * environment-variable.
+ *
+ * <p>
+ * Overrides are parsed once, when the configuration of a
+ * {@link VersionNumberBuilder} or {@link VersionNumberStep} is bound, the way
+ * {@link VersionNumberCommon#makeValid(String)} validates them. At build-time
+ * only the environment-variable is left to look up and parse.
+ * </p>
+ */
+final class VersionNumberOverride {
+
+    private static final Pattern ENV_VAR = Pattern.compile(VersionNumberCommon.ENV_VAR_PATTERN);
+
+    /** No override, the counter continues from the previous build. */
+    static final VersionNumberOverride NONE = new VersionNumberOverride("", -1, null);
+
+    /** The valid override as text, as {@link VersionNumberCommon#makeValid(String)} returns it. */
+    private final String text;
+    /** The literal number, or {@code -1}. */
+    private final int literal;
+    /** The name of the referenced environment-variable, or {@code null}. */
+    private final String variable;
+
+    private VersionNumberOverride(String text, int literal, String variable) {
+        this.text = text;
+        this.literal = literal;
+        this.variable = variable;
+    }
+
+    /**
+     * Parses a (user-provided) override. Anything but a non-negative number or
+     * a reference like <code>${VARIABLE_NAME}</code> or <code>$VARIABLE_NAME</code>
+     * is no override at all.
+     */
+    @NonNull
+    static VersionNumberOverride parse(@CheckForNull String override) {
+        if (override == null) {
+            return NONE;
+        }
+        String value = override.trim();
+        if (value.isEmpty()) {
+            return NONE;  // The usual case, no need to try parsing it.
+        }
+        try {
+            int number = Integer.parseInt(value);
+            // Negative numbers are not allowed.
+            return number < 0 ? NONE : new VersionNumberOverride(Integer.toString(number), number, null);
+        } catch (NumberFormatException e) {
+            // Not a number, so is it a reference to an environment-variable?
+        }
+        Matcher m = ENV_VAR.matcher(value);
+        if (m.matches()) {
+            return new VersionNumberOverride(value, -1, m.group(1) != null ? m.group(1) : m.group(2));
+        }
+        return NONE;
+    }
+
+    /** Returns whether this is no override at all. */
+    boolean isNone() {
+        return literal < 0 && variable == null;
+    }
+
+    /** Returns whether this is a literal number, which applies to a single build. */
+    boolean isLiteral() {
+        return literal >= 0;
+    }
+
+    /**
+     * Returns the value of the override for a build.
+     *
+     * @param vars The environment-variables of the build.
+     * @return The value, or {@code null} if there is no override or the
+     *         environment-variable does not hold a number greater than or
+     *         equal to 0.
+     */
+    @CheckForNull
+    Integer resolve(@CheckForNull Map<String, String> vars) {
+        if (literal >= 0) {
+            return literal;
+        }
+        if (variable == null || vars == null) {
+            return null;
+        }
+        String value = vars.get(variable);
+        if (value == null) {
+            return null;
+        }
+        try {
+            int number = Integer.parseInt(value);
+            return number < 0 ? null : number;
+        } catch (NumberFormatException e) {
+            // Invalid value, so do not override!
+            return null;
+        }
+    }
+
+    /**
+     * Returns the valid override as text, or the empty string if there is none.
+     */
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,238 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.lang.invoke.MethodHandles;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.BuildableItemWithBuildWrappers;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.util.AtomicFileWriter;
+
+import org.jvnet.hudson.tools.versionnumber.VersionNumberCounters.Counter;
+
+/**
+ * Per-job record of the literal overrides of {@link VersionNumberBuilder}
+ * which have already been used by a build, but may still be found in the
+ * job's <code>config.xml</code>.
+ *
+ * <p>
+ * A literal override (e.g. <code>42</code> for the builds of all time) applies
+ * to the next build only. It used to be consumed by clearing it and saving the
+ * job's <code>config.xml</code> during the build, which also triggered all
+ * listeners of saved items, such as the job configuration history. Instead, the
+ * build clears it in memory and keeps the used value in a small file next to
+ * the <code>config.xml</code>. The <code>config.xml</code> loses the override
+ * the next time the job is saved, e.g. by a user. Until then, an override still
+ * found in the job configuration is not applied again if it equals the used
+ * value, however the configuration got there (a restart, a
+ * <code>config.xml</code> posted back). A used value is forgotten once the job
+ * configuration is saved or updated without it, or once it is submitted with
+ * the override entered again, even with the same value.
+ * </p>
+ */
+final class VersionNumberOverrides {
+
+    /** Use Java 7 MethodHandles to get my class for logger. */
+    private static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getCanonicalName());
+
+    static final String FILE_NAME = "versionnumber-overrides.properties";
+
+    /** All records currently in memory, by full name of their job. */
+    private static final ConcurrentMap<String, VersionNumberOverrides> RECORDS = new ConcurrentHashMap<>();
+
+    /** The job may be replaced by a new instance when it is reloaded from disk. */
+    private volatile Job<?, ?> job;
+
+    /** The used override per counter; {@code null} until loaded. */
+    private Map<Counter, String> used;
+
+    private VersionNumberOverrides(Job<?, ?> job) {
+        this.job = job;
+    }
+
+    @NonNull
+    static VersionNumberOverrides of(@NonNull Job<?, ?> job) {
+        VersionNumberOverrides record = RECORDS.computeIfAbsent(job.getFullName(), name -> new VersionNumberOverrides(job));
+        if (record.job != job) {
+            record.reload(job);
+        }
+        return record;
+    }
+
+    /** Reads the record again along with the reloaded job. */
+    private synchronized void reload(Job<?, ?> job) {
+        this.job = job;
+        this.used = null;
+    }
+
+    /**
+     * Returns the given override unless it is a literal value which a previous
+     * build already used.
+     *
+     * @param counter The counter the override is for.
+     * @param override The override from the job configuration.
+     * @return The override to apply, possibly {@link VersionNumberOverride#NONE}.
+     */
+    @NonNull
+    synchronized VersionNumberOverride pending(@NonNull Counter counter, @NonNull VersionNumberOverride override) {
+        if (!override.isLiteral()) {
+            return override;
+        }
+        ensureLoaded();
+        return override.toString().equals(used.get(counter)) ? VersionNumberOverride.NONE : override;
+    }
+
+    /**
+     * Records that a build used the given literal overrides, which it cleared
+     * in the job configuration in memory.
+     *
+     * @param overrides The used overrides, by counter.
+     */
+    synchronized void markUsed(@NonNull Map<Counter, String> overrides) {
+        ensureLoaded();
+        if (used.entrySet().containsAll(overrides.entrySet())) {
+            return;
+        }
+        used.putAll(overrides);
+        write();
+    }
+
+    /**
+     * Forgets the used overrides the given configuration of the job, just
+     * saved or updated, does not have anymore, and those it was submitted with.
+     */
+    private synchronized void configured(@NonNull VersionNumberBuilder builder) {
+        if (used == null && !getFile().isFile()) {
+            return;
+        }
+        ensureLoaded();
+        if (used.entrySet().removeIf(entry -> {
+            VersionNumberOverride override = builder.getOverride(entry.getKey());
+            return (builder.isSubmitted() && override.isLiteral()) || !entry.getValue().equals(override.toString());
+        })) {
+            write();
+        }
+    }
+
+    private File getFile() {
+        return new File(job.getRootDir(), FILE_NAME);
+    }
+
+    private void ensureLoaded() {
+        if (used != null) {
+            return;
+        }
+        used = new EnumMap<>(Counter.class);
+        File file = getFile();
+        if (!file.isFile()) {
+            return;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read the used overrides of " + job.getFullName(), e);
+            return;
+        }
+        for (Counter counter : Counter.values()) {
+            String value = properties.getProperty(counter.name());
+            if (value != null) {
+                used.put(counter, value);
+            }
+        }
+    }
+
+    private void write() {
+        if (used.isEmpty()) {
+            File file = getFile();
+            if (file.isFile() && !file.delete()) {
+                LOGGER.log(Level.WARNING, "Failed to delete {0}", file);
+            }
+            return;
+        }
+        Properties properties = new Properties();
+        for (Map.Entry<Counter, String> entry : used.entrySet()) {
+            properties.setProperty(entry.getKey().name(), entry.getValue());
+        }
+        try {
+            AtomicFileWriter writer = new AtomicFileWriter(getFile().toPath(), StandardCharsets.UTF_8);
+            try {
+                properties.store(writer, "Overrides of the version-number already used by a build");
+                writer.commit();
+            } finally {
+                writer.abort();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to record the used overrides of " + job.getFullName(), e);
+        }
+    }
+
+    /**
+     * Updates the record of the given job, if it has a {@link VersionNumberBuilder},
+     * after its configuration was saved or updated.
+     */
+    private static void configured(Object item) {
+        if (item instanceof Job && item instanceof BuildableItemWithBuildWrappers) {
+            VersionNumberBuilder builder = ((BuildableItemWithBuildWrappers) item).getBuildWrappersList()
+                    .get(VersionNumberBuilder.class);
+            if (builder != null) {
+                of((Job<?, ?>) item).configured(builder);
+            }
+        }
+    }
+
+    /**
+     * Updates the record when a job gets saved, e.g. by a user.
+     */
+    @Extension
+    public static final class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            configured(o);
+        }
+    }
+
+    /**
+     * Updates the record when a job gets reconfigured and keeps track of
+     * renamed, moved and deleted jobs.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onUpdated(Item item) {
+            configured(item);
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            VersionNumberOverrides record = RECORDS.remove(oldFullName);
+            if (record != null && item instanceof Job) {
+                record.job = (Job<?, ?>) item;
+                RECORDS.put(newFullName, record);
+            }
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            RECORDS.remove(item.getFullName());
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import java.time.DateTimeException;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.temporal.TemporalAdjusters;
+import java.time.temporal.WeekFields;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import org.jvnet.hudson.tools.versionnumber.VersionNumberCounters.Counter;
+
+/**
+ * Decides which counters of a build continue from the previous build, by
+ * comparing the day, week, month and year both builds fall into.
+ *
+ * <p>
+ * The periods of a timestamp are computed once, in the configured time zone,
+ * into integer keys: the epoch-day of the day and of the start of the week,
+ * the index of the month and the year. Each counter is then decided by
+ * comparing two keys. The keys of a timestamp hold until the day ends, which
+ * is computed along with them, so the previous and the new build of the same
+ * day share them.
+ * </p>
+ */
+final class VersionNumberPeriods {
+
+    /**
+     * How the days are grouped into weeks.
+     */
+    enum WeekRule {
+        /**
+         * Weeks start on the first day of the week of the controller's locale,
+         * and a new year starts a new week. This is what the counters always did.
+         */
+        LOCALE,
+        /**
+         * Weeks start on Monday, and a week spanning New Year is a single week,
+         * as in ISO-8601.
+         */
+        ISO
+    }
+
+    /** The JVM's time zone and locale, which the counters always used. */
+    static final VersionNumberPeriods DEFAULT = new VersionNumberPeriods(null, WeekRule.LOCALE);
+
+    /** The time zone, or {@code null} for the JVM's default at the time. */
+    @CheckForNull
+    private final ZoneId zone;
+    @NonNull
+    private final WeekRule weekRule;
+
+    /** The keys computed last. */
+    private volatile Keys last;
+
+    private VersionNumberPeriods(@CheckForNull ZoneId zone, @NonNull WeekRule weekRule) {
+        this.zone = zone;
+        this.weekRule = weekRule;
+    }
+
+    /**
+     * Returns the periods for the given configuration.
+     *
+     * @param zone The ID of the time zone; empty for the JVM's default.
+     * @param weekRule The name of the {@link WeekRule}; empty for {@link WeekRule#LOCALE}.
+     * @throws IllegalArgumentException If the time zone or week rule is unknown.
+     */
+    @NonNull
+    static VersionNumberPeriods of(@CheckForNull String zone, @CheckForNull String weekRule) {
+        ZoneId zoneId = null;
+        if (zone != null && !zone.trim().isEmpty()) {
+            try {
+                zoneId = ZoneId.of(zone.trim());
+            } catch (DateTimeException e) {
+                throw new IllegalArgumentException("Unknown time zone '" + zone + "'", e);
+            }
+        }
+        WeekRule rule = WeekRule.LOCALE;
+        if (weekRule != null && !weekRule.isEmpty()) {
+            try {
+                rule = WeekRule.valueOf(weekRule);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown week rule '" + weekRule + "'", e);
+            }
+        }
+        if (zoneId == null && rule == WeekRule.LOCALE) {
+            return DEFAULT;
+        }
+        return new VersionNumberPeriods(zoneId, rule);
+    }
+
+    /** Returns the time zone the periods are in. */
+    @NonNull
+    ZoneId getZone() {
+        return zone != null ? zone : ZoneId.systemDefault();
+    }
+
+    /**
+     * Returns the calendar the date variables of a build are expanded in: in
+     * the time zone of the periods, and with the weeks of the week rule, so
+     * that e.g. <code>BUILD_DAY</code> changes when <code>BUILDS_TODAY</code>
+     * starts over.
+     *
+     * @param millis The timestamp of the build.
+     */
+    @NonNull
+    Calendar getCalendar(long millis) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone(getZone()),
+                Locale.getDefault(Locale.Category.FORMAT));
+        if (weekRule == WeekRule.ISO) {
+            calendar.setFirstDayOfWeek(Calendar.MONDAY);
+            calendar.setMinimalDaysInFirstWeek(4);
+        }
+        calendar.setTimeInMillis(millis);
+        return calendar;
+    }
+
+    /**
+     * Returns the counters which continue from the previous build rather than
+     * starting over, as bit mask of {@link Counter#bit()}s.
+     *
+     * @param millis The timestamp of the build.
+     * @param prevMillis The timestamp of the previous build.
+     */
+    int getContinuing(long millis, long prevMillis) {
+        Keys previous = keys(prevMillis);
+        Keys current = keys(millis);
+        int continuing = Counter.BUILDS_ALL_TIME.bit();
+        if (current.year == previous.year) {
+            continuing |= Counter.BUILDS_THIS_YEAR.bit();
+        }
+        if (current.month == previous.month) {
+            continuing |= Counter.BUILDS_THIS_MONTH.bit();
+        }
+        if (current.week == previous.week) {
+            continuing |= Counter.BUILDS_THIS_WEEK.bit();
+        }
+        if (current.day == previous.day) {
+            continuing |= Counter.BUILDS_TODAY.bit();
+        }
+        return continuing;
+    }
+
+    private Keys keys(long millis) {
+        ZoneId zoneId = getZone();
+        DayOfWeek firstDayOfWeek = weekRule == WeekRule.ISO
+                ? DayOfWeek.MONDAY
+                : WeekFields.of(Locale.getDefault(Locale.Category.FORMAT)).getFirstDayOfWeek();
+        Keys keys = last;
+        if (keys == null || !keys.holds(millis, zoneId, firstDayOfWeek)) {
+            keys = new Keys(millis, zoneId, firstDayOfWeek, weekRule == WeekRule.LOCALE);
+            last = keys;
+        }
+        return keys;
+    }
+
+    /**
+     * The periods a timestamp falls into.
+     */
+    private static final class Keys {
+        private final ZoneId zone;
+        private final DayOfWeek firstDayOfWeek;
+        /** The start of the day, inclusive. */
+        private final long from;
+        /** The start of the next day, when at least {@link #day} changes. */
+        private final long until;
+
+        /** The epoch-day. */
+        private final int day;
+        /** The epoch-day the week started. */
+        private final int week;
+        /** The months since year 0. */
+        private final int month;
+        private final int year;
+
+        Keys(long millis, ZoneId zone, DayOfWeek firstDayOfWeek, boolean weeksEndWithYear) {
+            LocalDate date = Instant.ofEpochMilli(millis).atZone(zone).toLocalDate();
+            this.zone = zone;
+            this.firstDayOfWeek = firstDayOfWeek;
+            this.from = date.atStartOfDay(zone).toInstant().toEpochMilli();
+            this.until = date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+
+            this.day = (int) date.toEpochDay();
+            this.year = date.getYear();
+            this.month = year * 12 + date.getMonthValue() - 1;
+            long weekStart = date.with(TemporalAdjusters.previousOrSame(firstDayOfWeek)).toEpochDay();
+            if (weeksEndWithYear) {
+                weekStart = Math.max(weekStart, date.withDayOfYear(1).toEpochDay());
+            }
+            this.week = (int) weekStart;
+        }
+
+        boolean holds(long millis, ZoneId zone, DayOfWeek firstDayOfWeek) {
+            return from <= millis && millis < until
+                    && this.firstDayOfWeek == firstDayOfWeek && this.zone.equals(zone);
+        }
+    }
+}
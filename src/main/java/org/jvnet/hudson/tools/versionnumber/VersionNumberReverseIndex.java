@@ -0,0 +1,304 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hashing;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+/**
+ * Controller-wide index from version-numbers to the builds which got them.
+ *
+ * <p>
+ * The {@link VersionNumberIndex}es report every build they add or drop here
+ * while their entries are in memory. An index dropped from memory (see
+ * {@link VersionNumberIndex#MAX_RESIDENT}) takes its builds along, and adds
+ * them again once loaded again, so this covers the jobs used most recently and
+ * stays as small as the indexes in memory. To stay small, builds are kept by a
+ * 64-bit hash of their version-number rather than the version-number itself,
+ * and the matches are checked against the entries of their job's index, as
+ * far as those are in memory. A Bloom filter of the hashes answers for
+ * version-numbers no build has without looking any further.
+ * </p>
+ */
+final class VersionNumberReverseIndex {
+
+    /** Size of the Bloom filter to start with, in version-numbers. */
+    private static final int MIN_CAPACITY = 1024;
+
+    /** Rate of version-numbers the Bloom filter mistakes for known ones. */
+    private static final double FALSE_POSITIVES = 0.01;
+
+    /** Builds by hash of their version-number. */
+    private static final ConcurrentMap<Long, Ref[]> REFS = new ConcurrentHashMap<>();
+
+    /**
+     * The hashes each index added to {@link #REFS}, so dropping all builds of
+     * an index does not have to go through the ones of all other indexes.
+     */
+    private static final ConcurrentMap<VersionNumberIndex, Set<Long>> CONTRIBUTED = new ConcurrentHashMap<>();
+
+    private static volatile BloomFilter<Long> filter = BloomFilter.create(Funnels.longFunnel(), MIN_CAPACITY, FALSE_POSITIVES);
+
+    /** The number of version-numbers {@link #filter} was created for. */
+    private static volatile int capacity = MIN_CAPACITY;
+
+    /** The number of hashes put into {@link #filter}, including dropped ones. */
+    private static final AtomicInteger filled = new AtomicInteger();
+
+    private VersionNumberReverseIndex() {
+    }
+
+    static long hash(String versionNumber) {
+        return Hashing.murmur3_128().hashUnencodedChars(versionNumber).asLong();
+    }
+
+    /**
+     * Adds a build, replacing its version-number if it had one.
+     */
+    static void add(@NonNull VersionNumberIndex index, @NonNull VersionNumberIndex.Entry entry) {
+        String versionNumber = entry.getVersionNumber();
+        if (versionNumber == null) {
+            return;
+        }
+        long hash = hash(versionNumber);
+        Ref ref = new Ref(index, entry.getNumber());
+        REFS.compute(hash, (key, refs) -> {
+            if (refs == null) {
+                return new Ref[] {ref};
+            }
+            for (Ref existing : refs) {
+                if (existing.equals(ref)) {
+                    return refs;
+                }
+            }
+            Ref[] result = Arrays.copyOf(refs, refs.length + 1);
+            result[refs.length] = ref;
+            return result;
+        });
+        CONTRIBUTED.computeIfAbsent(index, key -> ConcurrentHashMap.newKeySet()).add(hash);
+        // Put it into the filter replacing this one too, if any.
+        BloomFilter<Long> current;
+        do {
+            current = filter;
+            current.put(hash);
+        } while (current != filter);
+        if (filled.incrementAndGet() > capacity) {
+            resize();
+        }
+    }
+
+    /**
+     * Adds all builds of the given index.
+     */
+    static void addAll(@NonNull VersionNumberIndex index, @NonNull Collection<VersionNumberIndex.Entry> entries) {
+        for (VersionNumberIndex.Entry entry : entries) {
+            add(index, entry);
+        }
+    }
+
+    /**
+     * Drops a build. The Bloom filter keeps its hash until it is next resized.
+     */
+    static void remove(@NonNull VersionNumberIndex index, @NonNull VersionNumberIndex.Entry entry) {
+        String versionNumber = entry.getVersionNumber();
+        if (versionNumber == null) {
+            return;
+        }
+        long hash = hash(versionNumber);
+        Ref ref = new Ref(index, entry.getNumber());
+        Ref[] left = REFS.computeIfPresent(hash, (key, refs) -> without(refs, ref::equals));
+        if (left == null || Arrays.stream(left).noneMatch(other -> other.index == index)) {
+            // No other build of the index has it, e.g. with a constant version-number.
+            Set<Long> hashes = CONTRIBUTED.get(index);
+            if (hashes != null) {
+                hashes.remove(hash);
+            }
+        }
+    }
+
+    /**
+     * Drops all builds of the given index, e.g. since its job was deleted or
+     * its entries were dropped from memory.
+     */
+    static void removeAll(@NonNull VersionNumberIndex index) {
+        Set<Long> hashes = CONTRIBUTED.remove(index);
+        if (hashes == null) {
+            return;
+        }
+        for (Long hash : hashes) {
+            REFS.computeIfPresent(hash, (key, refs) -> without(refs, ref -> ref.index == index));
+        }
+    }
+
+    @CheckForNull
+    private static Ref[] without(Ref[] refs, Predicate<Ref> dropped) {
+        List<Ref> result = new ArrayList<>(refs.length);
+        for (Ref ref : refs) {
+            if (!dropped.test(ref)) {
+                result.add(ref);
+            }
+        }
+        if (result.size() == refs.length) {
+            return refs;
+        }
+        return result.isEmpty() ? null : result.toArray(new Ref[0]);
+    }
+
+    /**
+     * Creates a new Bloom filter, sized for twice the version-numbers known now,
+     * which also forgets the ones dropped since.
+     */
+    private static synchronized void resize() {
+        if (filled.get() <= capacity) {
+            return;  // Someone else was faster.
+        }
+        int size = Math.max(MIN_CAPACITY, 2 * REFS.size());
+        BloomFilter<Long> resized = BloomFilter.create(Funnels.longFunnel(), size, FALSE_POSITIVES);
+        int count = 0;
+        for (Long hash : REFS.keySet()) {
+            resized.put(hash);
+            count++;
+        }
+        filter = resized;
+        capacity = size;
+        filled.set(count);
+    }
+
+    /**
+     * Returns whether some build might have the given version-number. If not,
+     * none has.
+     */
+    static boolean mightContain(@NonNull String versionNumber) {
+        return filter.mightContain(hash(versionNumber));
+    }
+
+    /**
+     * Returns the builds which got the given version-number.
+     */
+    @NonNull
+    static List<Ref> find(@NonNull String versionNumber) {
+        return find(versionNumber, null);
+    }
+
+    /**
+     * Returns the builds which got the given version-number, of the given index
+     * only unless {@code null}. Only entries already in memory are looked at,
+     * so this never waits for an index to be read or rebuilt.
+     */
+    @NonNull
+    private static List<Ref> find(@NonNull String versionNumber, @CheckForNull VersionNumberIndex only) {
+        long hash = hash(versionNumber);
+        if (!filter.mightContain(hash)) {
+            return Collections.emptyList();
+        }
+        Ref[] refs = REFS.get(hash);
+        if (refs == null) {
+            return Collections.emptyList();
+        }
+        List<Ref> result = new ArrayList<>(refs.length);
+        for (Ref ref : refs) {
+            if ((only == null || ref.index == only) && ref.index.isCurrent()) {
+                VersionNumberIndex.Entry entry = ref.index.peek(ref.number);
+                if (entry != null && versionNumber.equals(entry.getVersionNumber())) {
+                    result.add(ref);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Tells the given listener, and the trace if any, about other builds of
+     * the same job with the version-number the given build is about to get.
+     *
+     * <p>
+     * Version-numbers without a counter which changes with every build are
+     * expected to repeat, so this is a hint rather than an error. Builds of
+     * other jobs are left out: jobs sharing a format-string (e.g.
+     * <code>1.0.${BUILDS_ALL_TIME}</code>) normally share version-numbers, and
+     * whoever can read this build might not be allowed to see those jobs.
+     * Since this runs while the version-number is allocated, no other index is
+     * even looked at.
+     * </p>
+     */
+    static void checkDuplicates(@NonNull Run<?, ?> run, @NonNull String versionNumber,
+            @CheckForNull TaskListener listener, @CheckForNull VersionNumberTrace trace) {
+        List<String> others = new ArrayList<>();
+        for (Ref ref : find(versionNumber, VersionNumberIndex.of(run.getParent()))) {
+            if (ref.number != run.getNumber()) {
+                others.add("#" + ref.number);
+            }
+        }
+        if (others.isEmpty()) {
+            return;
+        }
+        String message = "Version number '" + versionNumber + "' was given to " + others.size()
+                + " other build(s) of this job already: " + String.join(", ", others.subList(0, Math.min(5, others.size())))
+                + (others.size() > 5 ? ", ..." : "");
+        if (listener != null) {
+            listener.getLogger().println(message);
+        }
+        if (trace != null) {
+            trace.add(message);
+        }
+    }
+
+    /**
+     * A build with a version-number. It follows its job when that is renamed.
+     */
+    static final class Ref {
+        private final VersionNumberIndex index;
+        private final int number;
+
+        Ref(VersionNumberIndex index, int number) {
+            this.index = index;
+            this.number = number;
+        }
+
+        @NonNull
+        Job<?, ?> getJob() {
+            return index.getJob();
+        }
+
+        int getNumber() {
+            return number;
+        }
+
+        /** Returns the URL of the build, relative to the root of Jenkins. */
+        String getUrl() {
+            return getJob().getUrl() + number + '/';
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Ref && ((Ref) o).index == index && ((Ref) o).number == number;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(index) * 31 + number;
+        }
+
+        @Override
+        public String toString() {
+            return getJob().getFullName() + " #" + number;
+        }
+    }
+}
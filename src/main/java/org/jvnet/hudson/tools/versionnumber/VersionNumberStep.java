@@ -24,27 +24,47 @@
 
 package org.jvnet.hudson.tools.versionnumber;
 
-import com.google.inject.Inject;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
-import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
-import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
-import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousStepExecution;
-import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.jenkinsci.plugins.workflow.steps.EnvironmentExpander;
+import org.jenkinsci.plugins.workflow.steps.GeneralNonBlockingStepExecution;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
 
 import hudson.Extension;
 import hudson.model.Result;
 import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.EnvVars;
+import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.logging.Logger;
 import java.lang.invoke.MethodHandles;
 
+import org.jvnet.hudson.tools.versionnumber.VersionNumberCounters.Counter;
+
 /**
  * Returns the version number according to the
  * specified version number string.
@@ -54,11 +74,21 @@ import java.lang.invoke.MethodHandles;
  * <pre>
  * def x = VersionNumber("${BUILDS_TODAY}")
  * </pre>
+ *
+ * The version number is computed off the CPS VM thread (see
+ * {@link GeneralNonBlockingStepExecution}), so a slow lookup of the previous
+ * build does not block the other pipelines. The step is kept with the running
+ * pipeline, so it can be run again when the controller was restarted meanwhile.
  */
-public class VersionNumberStep extends AbstractStepImpl {
+public class VersionNumberStep extends Step implements Serializable {
+
+    private static final long serialVersionUID = 1L;
     
     /** Use Java 7 MethodHandles to get my class for logger. */
     private static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getCanonicalName());
+
+    /** A block like <code>${NAME, "3"}</code>, whose name is looked up in the environment unless it is a variable of the plugin. */
+    private static final Pattern BLOCK = Pattern.compile("\\$\\{([^},]+),");
  
     public final String versionNumberString;
 
@@ -77,21 +107,46 @@ public class VersionNumberStep extends AbstractStepImpl {
     @DataBoundSetter
     public String projectStartDate = null;
     
-    @DataBoundSetter
+    /** Bound through {@link #setOverrideBuildsAllTime(String)}. */
     public String overrideBuildsAllTime = null;
     
-    @DataBoundSetter
+    /** Bound through {@link #setOverrideBuildsToday(String)}. */
     public String overrideBuildsToday = null;
     
-    @DataBoundSetter
+    /** Bound through {@link #setOverrideBuildsThisWeek(String)}. */
     public String overrideBuildsThisWeek = null;
     
-    @DataBoundSetter
+    /** Bound through {@link #setOverrideBuildsThisMonth(String)}. */
     public String overrideBuildsThisMonth = null;
     
-    @DataBoundSetter
+    /** Bound through {@link #setOverrideBuildsThisYear(String)}. */
     public String overrideBuildsThisYear = null;
+
+    /** The overrides above, parsed when bound, in the order of {@link Counter}. */
+    private transient VersionNumberOverride[] overrides = {
+        VersionNumberOverride.NONE, VersionNumberOverride.NONE, VersionNumberOverride.NONE,
+        VersionNumberOverride.NONE, VersionNumberOverride.NONE,
+    };
+
+    /** Whether to keep the steps of computing the version-number with the build. */
+    @DataBoundSetter
+    @SuppressFBWarnings(value = "PA_PUBLIC_PRIMITIVE_ATTRIBUTE", justification = "Consistent with the other parameters.")
+    public boolean traceExpansion = false;
+
+    private String timeZone = null;
+
+    private String weekRule = null;
+
+    /** The time zone and week rule, parsed when bound. */
+    private transient VersionNumberPeriods periods = VersionNumberPeriods.DEFAULT;
     
+    /**
+     * For {@link VersionNumbersStep}, which has several format-strings.
+     */
+    VersionNumberStep() {
+        this.versionNumberString = null;
+    }
+
     @DataBoundConstructor
     public VersionNumberStep(String versionNumberString) {
         if ((versionNumberString == null) || versionNumberString.isEmpty()) {
@@ -100,6 +155,75 @@ public class VersionNumberStep extends AbstractStepImpl {
         this.versionNumberString = versionNumberString;
     }
 
+    /** Parses the overrides, time zone and week rule again after a restart. */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        overrides = new VersionNumberOverride[Counter.values().length];
+        overrides[Counter.BUILDS_TODAY.ordinal()] = VersionNumberOverride.parse(overrideBuildsToday);
+        overrides[Counter.BUILDS_THIS_WEEK.ordinal()] = VersionNumberOverride.parse(overrideBuildsThisWeek);
+        overrides[Counter.BUILDS_THIS_MONTH.ordinal()] = VersionNumberOverride.parse(overrideBuildsThisMonth);
+        overrides[Counter.BUILDS_THIS_YEAR.ordinal()] = VersionNumberOverride.parse(overrideBuildsThisYear);
+        overrides[Counter.BUILDS_ALL_TIME.ordinal()] = VersionNumberOverride.parse(overrideBuildsAllTime);
+        periods = VersionNumberPeriods.of(timeZone, weekRule);
+    }
+
+    @DataBoundSetter
+    public void setOverrideBuildsAllTime(String overrideBuildsAllTime) {
+        this.overrideBuildsAllTime = overrideBuildsAllTime;
+        this.overrides[Counter.BUILDS_ALL_TIME.ordinal()] = VersionNumberOverride.parse(overrideBuildsAllTime);
+    }
+
+    @DataBoundSetter
+    public void setOverrideBuildsToday(String overrideBuildsToday) {
+        this.overrideBuildsToday = overrideBuildsToday;
+        this.overrides[Counter.BUILDS_TODAY.ordinal()] = VersionNumberOverride.parse(overrideBuildsToday);
+    }
+
+    @DataBoundSetter
+    public void setOverrideBuildsThisWeek(String overrideBuildsThisWeek) {
+        this.overrideBuildsThisWeek = overrideBuildsThisWeek;
+        this.overrides[Counter.BUILDS_THIS_WEEK.ordinal()] = VersionNumberOverride.parse(overrideBuildsThisWeek);
+    }
+
+    @DataBoundSetter
+    public void setOverrideBuildsThisMonth(String overrideBuildsThisMonth) {
+        this.overrideBuildsThisMonth = overrideBuildsThisMonth;
+        this.overrides[Counter.BUILDS_THIS_MONTH.ordinal()] = VersionNumberOverride.parse(overrideBuildsThisMonth);
+    }
+
+    @DataBoundSetter
+    public void setOverrideBuildsThisYear(String overrideBuildsThisYear) {
+        this.overrideBuildsThisYear = overrideBuildsThisYear;
+        this.overrides[Counter.BUILDS_THIS_YEAR.ordinal()] = VersionNumberOverride.parse(overrideBuildsThisYear);
+    }
+
+    public String getTimeZone() {
+        return timeZone;
+    }
+
+    /**
+     * Sets the time zone which days, weeks, months and years are counted in;
+     * empty for the one of the controller.
+     */
+    @DataBoundSetter
+    public void setTimeZone(String timeZone) {
+        this.periods = VersionNumberPeriods.of(timeZone, this.weekRule);
+        this.timeZone = timeZone;
+    }
+
+    public String getWeekRule() {
+        return weekRule;
+    }
+
+    /**
+     * Sets how the days are grouped into weeks, see {@link VersionNumberPeriods.WeekRule}.
+     */
+    @DataBoundSetter
+    public void setWeekRule(String weekRule) {
+        this.periods = VersionNumberPeriods.of(this.timeZone, weekRule);
+        this.weekRule = weekRule;
+    }
+
     public Date getProjectStartDate() {
         Date value = VersionNumberCommon.parseDate(this.projectStartDate);
         if (value.compareTo(new Date(0)) != 0) {
@@ -142,11 +266,176 @@ public class VersionNumberStep extends AbstractStepImpl {
         }
     }
     
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+        return new Execution(this, context);
+    }
+
+    /**
+     * Returns the format-strings of this step, by name of their output.
+     */
+    Map<String, String> getVersionNumberStrings() {
+        return Collections.singletonMap("versionNumber", versionNumberString);
+    }
+
+    /**
+     * Returns whether this step returns all outputs of
+     * {@link #getVersionNumberStrings()} rather than a single version number.
+     */
+    boolean isBatch() {
+        return false;
+    }
+
+    /**
+     * Returns what identifies the result of this step within a run: the
+     * format-strings, all other parameters going into the version numbers and
+     * the values of the environment-variables the format-strings refer to.
+     *
+     * @param env The environment of the step.
+     */
+    String getKey(Map<String, String> env) {
+        StringBuilder key = new StringBuilder(isBatch() ? "VersionNumbers" : "VersionNumber");
+        for (Map.Entry<String, String> entry : getVersionNumberStrings().entrySet()) {
+            appendKey(key, entry.getKey());
+            appendKey(key, entry.getValue());
+        }
+        VersionNumberEnvironment environment = VersionNumberEnvironment.of(env);
+        Set<String> seen = new HashSet<>();
+        for (String versionNumberString : getVersionNumberStrings().values()) {
+            appendVariables(key, versionNumberString, environment, seen);
+        }
+        appendKey(key, versionPrefix);
+        appendKey(key, projectStartDate);
+        appendKey(key, getWorstResultForIncrement().toString());
+        appendKey(key, overrideBuildsToday);
+        appendKey(key, overrideBuildsThisWeek);
+        appendKey(key, overrideBuildsThisMonth);
+        appendKey(key, overrideBuildsThisYear);
+        appendKey(key, overrideBuildsAllTime);
+        appendKey(key, timeZone);
+        appendKey(key, weekRule);
+        return key.toString();
+    }
+
+    /**
+     * Appends the names and values of the environment-variables the given text
+     * refers to, either as <code>$NAME</code> or <code>${NAME}</code> or as a
+     * block like <code>${NAME, "3"}</code>, and of the ones their values refer to.
+     */
+    private static void appendVariables(StringBuilder key, String text, VersionNumberEnvironment env, Set<String> seen) {
+        List<String> names = new ArrayList<>();
+        Matcher m = VersionNumberEnvironment.VARIABLE.matcher(text);
+        while (m.find()) {
+            String name = m.group(1);
+            if (name.charAt(0) != '$') {
+                names.add(name.charAt(0) == '{' ? name.substring(1, name.length() - 1) : name);
+            }
+        }
+        m = BLOCK.matcher(text);
+        while (m.find()) {
+            names.add(m.group(1));
+        }
+        VersionNumberVariables variables = VersionNumberVariables.get();
+        for (String name : names) {
+            if (variables.get(name) != null || !seen.add(name)) {
+                continue;
+            }
+            String value = env.get(name);
+            appendKey(key, name);
+            appendKey(key, value);
+            if (value != null) {
+                appendVariables(key, value, env, seen);
+            }
+        }
+    }
+
+    private static void appendKey(StringBuilder key, String value) {
+        // Length-prefixed, so no value can be mistaken for several.
+        key.append('|');
+        if (value != null) {
+            key.append(value.length()).append(':').append(value);
+        }
+    }
+
+    /**
+     * Computes the version numbers of this step, with a single lookup of the
+     * previous build and a single computation of the counters.
+     *
+     * <p>
+     * A run gets its version numbers once: if an earlier call of the step with
+     * the same parameters and environment (see {@link #getKey(Map)}) in the same run added a
+     * {@link VersionNumberAction}, its result is returned again. Concurrent
+     * calls, e.g. from <code>parallel</code> branches, wait for the allocation
+     * lock of the job, so only the first one computes anything.
+     * </p>
+     *
+     * @param sensitiveVariables The variables of the environment to mask in the trace.
+     * @param listener Where to report other builds with the same version number, if anywhere.
+     * @return The version number, or all of them by name if {@link #isBatch()}.
+     */
+    Object compute(Run run, EnvVars env, Set<String> sensitiveVariables, @CheckForNull TaskListener listener)
+            throws InterruptedException {
+        String key = getKey(env);
+        Map<String, String> versionNumberStrings = getVersionNumberStrings();
+        int counters = 0;
+        for (String versionNumberString : versionNumberStrings.values()) {
+            counters |= VersionNumberTemplate.of(versionNumberString).getCounters();
+        }
+        long start = System.nanoTime();
+        Lock lock = VersionNumberCommon.getAllocationLock(run.getParent());
+        lock.lockInterruptibly();
+        VersionNumberMetrics.record(VersionNumberMetrics.Stage.LOCK, start);
+        try {
+            for (VersionNumberAction existing : run.getActions(VersionNumberAction.class)) {
+                if (key.equals(existing.getKey())) {
+                    return isBatch() ? new LinkedHashMap<>(existing.getOutputs()) : existing.getVersionNumber();
+                }
+            }
+            VersionNumberTrace trace = traceExpansion ? new VersionNumberTrace(env, sensitiveVariables) : null;
+            VersionNumberIndex.Entry previous = VersionNumberCommon.getPreviousEntry(run, versionPrefix, trace);
+            VersionNumberBuildInfo info = VersionNumberCommon.incBuild(counters, run, env, previous,
+                    getWorstResultForIncrement(), periods, overrides);
+
+            Map<String, String> versionNumbers = new LinkedHashMap<>();
+            for (Map.Entry<String, String> entry : versionNumberStrings.entrySet()) {
+                if (trace != null && isBatch()) {
+                    trace.add("Output '" + entry.getKey() + "':");
+                }
+                String formattedVersionNumber = VersionNumberCommon.formatVersionNumber(entry.getValue(),
+                                                                                        getProjectStartDate(),
+                                                                                        info,
+                                                                                        env,
+                                                                                        periods.getCalendar(run.getTimeInMillis()),
+                                                                                        trace);
+                // Difference compared to freestyle jobs.
+                // If a version prefix is specified, it is forced to be prefixed.
+                // Otherwise the version prefix does not function correctly - even in freestyle jobs.
+                // In freestlye jobs it is assumed that the user reuses the version prefix
+                // within the version number string, but this assumption is not documented.
+                // Hence, it might yield to errors, and therefore in pipeline steps, we 
+                // force the version prefix to be prefixed.
+                if (versionPrefix != null) {
+                    formattedVersionNumber = versionPrefix + formattedVersionNumber;
+                }
+                versionNumbers.put(entry.getKey(), formattedVersionNumber);
+            }
+            // The first output is the one the index (and so the prefix) sees.
+            String versionNumber = versionNumbers.values().iterator().next();
+            VersionNumberReverseIndex.checkDuplicates(run, versionNumber, listener, trace);
+            run.addAction(new VersionNumberAction(info, versionNumber, trace, isBatch() ? versionNumbers : null, key));
+            VersionNumberIndex.of(run.getParent()).record(run, versionPrefix);
+            VersionNumberMetrics.record(VersionNumberMetrics.Stage.TOTAL, start);
+            return isBatch() ? versionNumbers : versionNumber;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Extension
-    public static final class DescriptorImpl extends AbstractStepDescriptorImpl {
+    public static class DescriptorImpl extends StepDescriptor {
 
-        public DescriptorImpl() {
-            super(Execution.class);
+        @Override public Set<? extends Class<?>> getRequiredContext() {
+            return Set.of(Run.class, EnvVars.class);
         }
 
         @Override public String getFunctionName() {
@@ -167,51 +456,69 @@ public class VersionNumberStep extends AbstractStepImpl {
             return items;
         }
 
+        public ListBoxModel doFillWeekRuleItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("Locale of the controller, restarting with the year", VersionNumberPeriods.WeekRule.LOCALE.name());
+            items.add("ISO-8601, starting on Monday", VersionNumberPeriods.WeekRule.ISO.name());
+            return items;
+        }
+
+        public FormValidation doCheckTimeZone(@QueryParameter String value) {
+            try {
+                VersionNumberPeriods.of(value, null);
+                return FormValidation.ok();
+            } catch (IllegalArgumentException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+
     }
 
-    public static class Execution extends AbstractSynchronousStepExecution<String> {
-        
-        @StepContextParameter private transient Run run;
-        @StepContextParameter private transient EnvVars env;
-        @Inject(optional=true) private transient VersionNumberStep step;
+    /**
+     * Computes the version numbers in the background and completes the step
+     * from there.
+     */
+    public static class Execution extends GeneralNonBlockingStepExecution {
+
+        private final VersionNumberStep step;
+
+        Execution(VersionNumberStep step, StepContext context) {
+            super(context);
+            this.step = step;
+        }
 
         @Override
-        protected String run() throws Exception {
-            if (step.versionNumberString != null) {
-                try {
-                    Run prevBuild = VersionNumberCommon.getPreviousBuildWithVersionNumber(run, step.versionPrefix);
-                    VersionNumberBuildInfo info = VersionNumberCommon.incBuild(run, env, prevBuild,
-                            step.getWorstResultForIncrement(),
-                            step.overrideBuildsToday,
-                            step.overrideBuildsThisWeek,
-                            step.overrideBuildsThisMonth,
-                            step.overrideBuildsThisYear,
-                            step.overrideBuildsAllTime);
-                    
-                    String formattedVersionNumber = VersionNumberCommon.formatVersionNumber(step.versionNumberString,
-                                                                                            step.getProjectStartDate(),
-                                                                                            info,
-                                                                                            env,
-                                                                                            run.getTimestamp());
-                    // Difference compared to freestyle jobs.
-                    // If a version prefix is specified, it is forced to be prefixed.
-                    // Otherwise the version prefix does not function correctly - even in freestyle jobs.
-                    // In freestlye jobs it is assumed that the user reuses the version prefix
-                    // within the version number string, but this assumption is not documented.
-                    // Hence, it might yield to errors, and therefore in pipeline steps, we 
-                    // force the version prefix to be prefixed.
-                    if (step.versionPrefix != null) {
-                        formattedVersionNumber = step.versionPrefix + formattedVersionNumber;
-                    }
-                    run.addAction(new VersionNumberAction(info, formattedVersionNumber));
-                    return formattedVersionNumber;
-                } catch (Exception e) {
+        public boolean start() throws Exception {
+            run(this::compute);
+            return false;
+        }
+
+        @Override
+        public void onResume() {
+            // If the version numbers got computed before the restart, the run
+            // has them already and gets them again; otherwise they are computed now.
+            run(this::compute);
+        }
+
+        private void compute() throws Exception {
+            try {
+                Run<?, ?> run = getContext().get(Run.class);
+                EnvVars env = getContext().get(EnvVars.class);
+                TaskListener listener = getContext().get(TaskListener.class);
+                Set<String> sensitiveVariables = new HashSet<>(VersionNumberTrace.getSensitiveVariables(run));
+                EnvironmentExpander expander = getContext().get(EnvironmentExpander.class);
+                if (expander != null) {
+                    // E.g. credentials bound by withCredentials.
+                    sensitiveVariables.addAll(expander.getSensitiveVariables());
                 }
+                getContext().onSuccess(step.compute(run, env, sensitiveVariables, listener));
+            } catch (Exception e) {
+                VersionNumberMetrics.recordFailure();
+                throw e;
             }
-            return "";
         }
 
-        private static final long serialVersionUID = 2L;
+        private static final long serialVersionUID = 4L;
 
     }
 
@@ -0,0 +1,404 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+
+import hudson.EnvVars;
+
+/**
+ * A version-number format-string, parsed once into a sequence of tokens.
+ *
+ * <p>
+ * {@link VersionNumberCommon#formatVersionNumber} expands a format-string in two
+ * phases: First all environment-variables are expanded (see {@link EnvVars#expand}),
+ * then all remaining <code>${...}</code> blocks of the result are replaced one
+ * by one. Which blocks the second phase sees depends on which variables the
+ * first phase could resolve, so a template keeps one compiled program per set
+ * of resolved variables.
+ * </p>
+ * <p>
+ * Compiled programs only cover the usual case where the values inserted into the
+ * format-string cannot create new blocks. Whenever that cannot be ruled out,
+ * {@link #render} returns {@code null} and the caller has to fall back to the
+ * step-by-step expansion, which defines the semantics.
+ * </p>
+ * <p>
+ * The blocks are resolved against the {@link VersionNumberVariables} once, when
+ * compiled. A template compiled against a table which got replaced since (e.g.
+ * since a plugin contributing variables was installed) is compiled again.
+ * </p>
+ */
+final class VersionNumberTemplate {
+
+    /** Templates are few (one per job-configuration), but do not grow without limit. */
+    private static final int MAX_TEMPLATES = 256;
+    private static final ConcurrentMap<String, VersionNumberTemplate> TEMPLATES = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(64));
+    private static final int MAX_BUFFER_CAPACITY = 1024;
+
+    /** Placeholder of a resolved variable while compiling. */
+    private static final char SLOT = '\uFFFF';
+
+    /** Marks a program which cannot be compiled. */
+    private static final Token[] DYNAMIC = new Token[0];
+
+    /** The format-string split into literal text ({@link String}) and {@link Variable}s. */
+    private final Object[] segments;
+    /** The variables of the format-string, in order. */
+    private final Variable[] variables;
+    /** The counters the format-string mentions, as bit mask of {@link VersionNumberCounters.Counter#bit()}s. */
+    private final int counters;
+    /** Compiled programs by bit-mask of resolved variables. */
+    private final ConcurrentMap<Long, Token[]> programs = new ConcurrentHashMap<>();
+    /** The variables the blocks are resolved against. */
+    private final VersionNumberVariables table;
+
+    private VersionNumberTemplate(String format, VersionNumberVariables table) {
+        this.table = table;
+        List<Object> segmentList = new ArrayList<>();
+        List<Variable> variableList = new ArrayList<>();
+        Matcher m = VersionNumberEnvironment.VARIABLE.matcher(format);
+        int idx = 0;
+        while (m.find(idx)) {
+            if (m.start() > idx) {
+                segmentList.add(format.substring(idx, m.start()));
+            }
+            String key = m.group().substring(1);
+            if (key.charAt(0) == '$') {
+                segmentList.add("$");
+            } else {
+                if (key.charAt(0) == '{') {
+                    key = key.substring(1, key.length() - 1);
+                }
+                Variable variable = new Variable(key, m.group());
+                segmentList.add(variable);
+                variableList.add(variable);
+            }
+            idx = m.end();
+        }
+        if (idx < format.length()) {
+            segmentList.add(format.substring(idx));
+        }
+        this.segments = segmentList.toArray();
+        this.variables = variableList.toArray(new Variable[0]);
+
+        int mentioned = 0;
+        for (VersionNumberCounters.Counter counter : VersionNumberCounters.Counter.values()) {
+            if (format.contains(counter.name())) {
+                mentioned |= counter.bit();
+            }
+        }
+        this.counters = mentioned;
+    }
+
+    /**
+     * Returns the compiled template of the given format-string.
+     */
+    static VersionNumberTemplate of(String format) {
+        VersionNumberVariables table = VersionNumberVariables.get();
+        VersionNumberTemplate template = TEMPLATES.get(format);
+        if (template == null || template.table != table) {
+            if (TEMPLATES.size() >= MAX_TEMPLATES) {
+                TEMPLATES.clear();
+            }
+            template = TEMPLATES.compute(format, (key, existing) ->
+                    existing != null && existing.table == table ? existing : new VersionNumberTemplate(key, table));
+        }
+        return template;
+    }
+
+    /**
+     * Returns the counters the format-string mentions, as bit mask of
+     * {@link VersionNumberCounters.Counter#bit()}s. Counters only showing up in
+     * the values of environment-variables are not included, so the others still
+     * have to be computable on demand.
+     */
+    int getCounters() {
+        return counters;
+    }
+
+    /**
+     * Expands the template.
+     *
+     * @return The version-number or {@code null} if the template cannot be
+     *         expanded this way for the given environment.
+     */
+    String render(Date projectStartDate, VersionNumberBuildInfo info, Map<String, String> enVars, Calendar buildDate) {
+        if (variables.length >= Long.SIZE) {
+            return null;
+        }
+        VersionNumberEnvironment env = VersionNumberEnvironment.of(enVars);
+        VersionNumberVariable.Context context = new VersionNumberVariable.Context(projectStartDate, info, buildDate);
+        String[] values = new String[variables.length];
+        long resolved = 0;
+        for (int i = 0; i < variables.length; i++) {
+            values[i] = env.get(variables[i].name);
+            if (values[i] != null) {
+                resolved |= 1L << i;
+            }
+        }
+        Token[] program = programs.computeIfAbsent(resolved, this::compile);
+        if (program == DYNAMIC) {
+            return null;
+        }
+
+        StringBuilder sb = BUFFER.get();
+        if (sb.capacity() > MAX_BUFFER_CAPACITY) {
+            sb = new StringBuilder(64);
+            BUFFER.set(sb);
+        }
+        sb.setLength(0);
+        for (Token token : program) {
+            switch (token.kind) {
+                case TEXT:
+                    sb.append(token.text);
+                    break;
+                case VALUE:
+                    if (!appendInert(sb, values[token.slot])) {
+                        return null;
+                    }
+                    break;
+                case BLOCK:
+                    int start = sb.length();
+                    if (token.variable == null || !token.variable.appendTo(sb, context, token.argument, token.compiled)) {
+                        // Anything else is looked up (again) in the environment-variables.
+                        if (!appendEnvironment(sb, token, env)) {
+                            return null;
+                        }
+                    } else if (!isInert(sb, start)) {
+                        return null;
+                    }
+                    break;
+                default:
+                    // Unclosed block: everything from here on is dropped.
+                    return sb.toString();
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Compiles the program for the case that exactly the variables in the given
+     * bit-mask can be resolved.
+     */
+    private Token[] compile(long resolved) {
+        // Build the result of the first phase, with placeholders for the resolved variables.
+        StringBuilder shape = new StringBuilder();
+        List<Integer> slots = new ArrayList<>();
+        int v = 0;
+        for (Object segment : segments) {
+            if (segment instanceof Variable) {
+                if ((resolved & (1L << v)) != 0) {
+                    shape.append(SLOT);
+                    slots.add(v);
+                } else {
+                    shape.append(((Variable) segment).text);
+                }
+                v++;
+            } else {
+                String text = (String) segment;
+                if (text.indexOf(SLOT) >= 0) {
+                    return DYNAMIC;
+                }
+                shape.append(text);
+            }
+        }
+
+        // Replay the second phase on that shape.
+        String vnf = shape.toString();
+        List<Token> tokens = new ArrayList<>();
+        int[] nextSlot = {0};
+        int pos = 0;
+        while (true) {
+            int blockStart = vnf.indexOf("${", pos);
+            if (blockStart < 0) {
+                if (!addText(tokens, vnf.substring(pos), slots, nextSlot)) {
+                    return DYNAMIC;
+                }
+                break;
+            }
+            if (!addText(tokens, vnf.substring(pos, blockStart), slots, nextSlot)) {
+                return DYNAMIC;
+            }
+            int blockEnd = vnf.indexOf("}", blockStart) + 1;
+            if (blockEnd <= blockStart) {
+                // A value inserted into an unclosed block might close it.
+                if (vnf.indexOf(SLOT, blockStart) >= 0) {
+                    return DYNAMIC;
+                }
+                tokens.add(Token.TRUNCATE);
+                break;
+            }
+            if (vnf.substring(blockStart, blockEnd).indexOf(SLOT) >= 0) {
+                return DYNAMIC;
+            }
+            int commandStart = blockStart + 2;
+            int commandEnd = blockEnd - 1;
+            int argumentStart = vnf.indexOf(",", blockStart);
+            int argumentEnd = 0;
+            if (argumentStart > 0 && argumentStart < blockEnd) {
+                argumentEnd = blockEnd - 1;
+                commandEnd = argumentStart;
+            }
+            String expressionKey = vnf.substring(commandStart, commandEnd);
+            String argumentString = argumentEnd > 0 ? vnf.substring(argumentStart + 1, argumentEnd).trim() : "";
+            tokens.add(Token.block(expressionKey, argumentString, table.get(expressionKey)));
+            pos = blockEnd;
+        }
+        return tokens.toArray(new Token[0]);
+    }
+
+    /**
+     * Adds literal text of the first phase's result, which may contain placeholders.
+     *
+     * @return {@code false} if the text could take part in building a block.
+     */
+    private static boolean addText(List<Token> tokens, String text, List<Integer> slots, int[] nextSlot) {
+        // Removing an empty value could join a '$' and a '{', so stray ones are not supported.
+        if (text.indexOf('$') >= 0 || text.indexOf('{') >= 0) {
+            return false;
+        }
+        int start = 0;
+        int slot;
+        while ((slot = text.indexOf(SLOT, start)) >= 0) {
+            if (slot > start) {
+                tokens.add(Token.text(text.substring(start, slot)));
+            }
+            tokens.add(Token.value(slots.get(nextSlot[0]++)));
+            start = slot + 1;
+        }
+        if (start < text.length()) {
+            tokens.add(Token.text(text.substring(start)));
+        }
+        return true;
+    }
+
+    /**
+     * Appends the value of the environment-variable named by the block.
+     *
+     * @return {@code false} if the value could start a new block.
+     */
+    private static boolean appendEnvironment(StringBuilder sb, Token token, VersionNumberEnvironment env) {
+        String replaceValue = "";
+        String value = env.getExact(token.text);
+        // Ignore variables which resolve to themselves.
+        if (value != null && !value.equals("${" + token.text + "}")) {
+            replaceValue = VersionNumberCommon.selectSubstringOfReplaceValue(value, token.argument);
+        }
+        return appendInert(sb, replaceValue);
+    }
+
+    /**
+     * Appends a value unless it could start a new block.
+     */
+    private static boolean appendInert(StringBuilder sb, String value) {
+        if (value.indexOf('$') >= 0 || value.indexOf('{') >= 0) {
+            return false;
+        }
+        sb.append(value);
+        return true;
+    }
+
+    /**
+     * Checks that the text appended from the given position on cannot start a new block.
+     */
+    private static boolean isInert(StringBuilder sb, int start) {
+        for (int i = start; i < sb.length(); i++) {
+            char c = sb.charAt(i);
+            if (c == '$' || c == '{') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends the given number, left-padded with zeros to the given width.
+     */
+    static void appendPadded(StringBuilder sb, int value, int width) {
+        long abs = Math.abs((long) value);
+        int length = value < 0 ? 2 : 1;
+        while (abs >= 10) {
+            abs /= 10;
+            length++;
+        }
+        for (int i = length; i < width; i++) {
+            sb.append('0');
+        }
+        sb.append(value);
+    }
+
+    /**
+     * An environment-variable referenced in the format-string.
+     */
+    private static final class Variable {
+        final String name;
+        /** The text of the reference, which stays if the variable cannot be resolved. */
+        final String text;
+
+        Variable(String name, String text) {
+            this.name = name;
+            this.text = text;
+        }
+    }
+
+    private static final int TEXT = 0;
+    private static final int VALUE = 1;
+    private static final int BLOCK = 2;
+    private static final int END = 3;
+
+    /**
+     * A single instruction of a compiled program.
+     */
+    private static final class Token {
+        static final Token TRUNCATE = new Token(END, null, -1, null, null, null);
+
+        final int kind;
+        final String text;
+        /** The index of the resolved environment-variable. */
+        final int slot;
+        /** The variable of the block, {@code null} if it is an environment-variable. */
+        final VersionNumberVariable variable;
+        /** The (trimmed) argument of the block. */
+        final String argument;
+        /** What the variable prepared from the argument, see {@link VersionNumberVariable#compile}. */
+        final Object compiled;
+
+        private Token(int kind, String text, int slot, VersionNumberVariable variable, String argument, Object compiled) {
+            this.kind = kind;
+            this.text = text;
+            this.slot = slot;
+            this.variable = variable;
+            this.argument = argument;
+            this.compiled = compiled;
+        }
+
+        static Token text(String text) {
+            return new Token(TEXT, text, -1, null, null, null);
+        }
+
+        static Token value(int slot) {
+            return new Token(VALUE, null, slot, null, null, null);
+        }
+
+        static Token block(String expressionKey, String argumentString, VersionNumberVariable variable) {
+            Object compiled = variable != null ? variable.compile(argumentString) : null;
+            return new Token(BLOCK, expressionKey, -1, variable, argumentString, compiled);
+        }
+    }
+
+    /**
+     * Returns everything inside the first pair of quote marks.
+     */
+    static String extractDateFormat(String argumentString) {
+        return argumentString.substring(argumentString.indexOf('"') + 1,
+                                        argumentString.indexOf('"', argumentString.indexOf('"') + 1));
+    }
+}
@@ -0,0 +1,99 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import hudson.model.AbstractBuild;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Run;
+
+/**
+ * Records the steps of computing a version-number, if the job asks for it.
+ * The trace is kept with the {@link VersionNumberAction} of the build, so it is
+ * bounded in the number and length of its lines.
+ *
+ * <p>
+ * Anyone who can see the build can read the trace, so the values of sensitive
+ * variables (e.g. password parameters or bound credentials) are masked like in
+ * the console of the build.
+ * </p>
+ */
+final class VersionNumberTrace {
+
+    static final int MAX_LINES = 200;
+    static final int MAX_LINE_LENGTH = 500;
+
+    private static final String MASK = "****";
+
+    private final List<String> lines = new ArrayList<>();
+    private int dropped;
+
+    /** The values to mask, longest first, so a value containing another one is masked as a whole. */
+    private final List<String> masked = new ArrayList<>();
+
+    VersionNumberTrace() {
+    }
+
+    /**
+     * Creates a trace masking the values the given variables have in the given
+     * environment.
+     */
+    VersionNumberTrace(Map<String, String> env, Collection<String> sensitiveVariables) {
+        for (String name : sensitiveVariables) {
+            String value = env.get(name);
+            if (value != null && !value.isEmpty() && !masked.contains(value)) {
+                masked.add(value);
+            }
+        }
+        masked.sort(Comparator.comparingInt(String::length).reversed());
+    }
+
+    /**
+     * Returns the names of the variables of the given build which are masked in
+     * its console: sensitive parameters and, for freestyle builds, the
+     * variables of build wrappers such as credentials bindings.
+     */
+    static Set<String> getSensitiveVariables(Run<?, ?> run) {
+        if (run instanceof AbstractBuild) {
+            return ((AbstractBuild<?, ?>) run).getSensitiveBuildVariables();
+        }
+        Set<String> names = new HashSet<>();
+        ParametersAction parameters = run.getAction(ParametersAction.class);
+        if (parameters != null) {
+            for (ParameterValue parameter : parameters.getParameters()) {
+                if (parameter.isSensitive()) {
+                    names.add(parameter.getName());
+                }
+            }
+        }
+        return names;
+    }
+
+    void add(String line) {
+        if (lines.size() >= MAX_LINES) {
+            dropped++;
+            return;
+        }
+        for (String value : masked) {
+            line = line.replace(value, MASK);
+        }
+        if (line.length() > MAX_LINE_LENGTH) {
+            line = line.substring(0, MAX_LINE_LENGTH) + "...";
+        }
+        lines.add(line);
+    }
+
+    List<String> getLines() {
+        List<String> result = new ArrayList<>(lines);
+        if (dropped > 0) {
+            result.add("(" + dropped + " more lines dropped)");
+        }
+        return result;
+    }
+}
@@ -0,0 +1,132 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import java.util.Calendar;
+import java.util.Date;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+
+/**
+ * A variable of version-number format-strings, such as
+ * <code>${BUILD_MONTH, XX}</code>.
+ *
+ * <p>
+ * Plugins can contribute more by registering an implementation as
+ * {@link hudson.Extension}. The built-in variables cannot be replaced.
+ * Environment-variables are expanded before any of these, though, so a plain
+ * <code>${NAME}</code> gives the value of an environment-variable of that name,
+ * if there is one. A block with an argument, like <code>${NAME, XX}</code>,
+ * gives the value of the variable first. Variables counting builds extend
+ * {@link VersionNumberCounter}, so their value is kept with every build for the
+ * next one to continue from.
+ * </p>
+ * <p>
+ * The names are resolved once into a table (see {@link VersionNumberVariables}),
+ * so every variable added does not slow down formatting any further.
+ * </p>
+ */
+public abstract class VersionNumberVariable implements ExtensionPoint {
+
+    /**
+     * Returns the name of the variable, e.g. <code>BUILDS_THIS_QUARTER</code>.
+     * It consists of letters, digits and underscores only.
+     */
+    @NonNull
+    public abstract String getName();
+
+    /**
+     * Returns the value of the variable for a build.
+     *
+     * @param context The build being numbered.
+     * @param argument What follows the name inside the block, trimmed, e.g.
+     *                 <code>XX</code> for <code>${BUILD_MONTH, XX}</code>, or
+     *                 an empty string.
+     * @return The value, or {@code null} to look the name up in the
+     *         environment-variables instead.
+     */
+    @CheckForNull
+    public abstract String getValue(@NonNull Context context, @NonNull String argument);
+
+    /**
+     * Prepares what {@link #appendTo} needs from the argument of a block, once
+     * per format-string.
+     */
+    @CheckForNull
+    Object compile(@NonNull String argument) {
+        return null;
+    }
+
+    /**
+     * Appends the value of the variable. The built-in variables do so without
+     * creating strings.
+     *
+     * @param compiled What {@link #compile} returned for the argument.
+     * @return {@code false} if there is no value, so the environment-variables
+     *         have to be looked up.
+     */
+    boolean appendTo(@NonNull StringBuilder sb, @NonNull Context context, @NonNull String argument,
+                     @CheckForNull Object compiled) {
+        String value = getValue(context, argument);
+        if (value == null) {
+            return false;
+        }
+        sb.append(value);
+        return true;
+    }
+
+    /**
+     * Returns the given number left-padded with zeros to the length of the
+     * argument, as the built-in numbers are (e.g. <code>${BUILD_MONTH, XX}</code>
+     * gives <code>07</code>).
+     */
+    @NonNull
+    protected static String pad(int value, @NonNull String argument) {
+        StringBuilder sb = new StringBuilder();
+        VersionNumberTemplate.appendPadded(sb, value, argument.length());
+        return sb.toString();
+    }
+
+    /**
+     * Returns all contributed variables.
+     */
+    @NonNull
+    public static ExtensionList<VersionNumberVariable> all() {
+        return ExtensionList.lookup(VersionNumberVariable.class);
+    }
+
+    /**
+     * The build a version-number is formatted for.
+     */
+    public static final class Context {
+        final Date projectStartDate;
+        final VersionNumberBuildInfo info;
+        final Calendar buildDate;
+
+        Context(@CheckForNull Date projectStartDate, @NonNull VersionNumberBuildInfo info, @NonNull Calendar buildDate) {
+            this.projectStartDate = projectStartDate;
+            this.info = info;
+            this.buildDate = buildDate;
+        }
+
+        /** Returns the project start date configured, if any. */
+        @CheckForNull
+        public Date getProjectStartDate() {
+            return projectStartDate != null ? (Date) projectStartDate.clone() : null;
+        }
+
+        /** Returns the counters of the build. */
+        @NonNull
+        public VersionNumberBuildInfo getInfo() {
+            return info;
+        }
+
+        /** Returns when the build started, in the time zone of the version-number. */
+        @NonNull
+        public Calendar getBuildDate() {
+            return (Calendar) buildDate.clone();
+        }
+    }
+}
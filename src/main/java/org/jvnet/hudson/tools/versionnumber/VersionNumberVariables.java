@@ -0,0 +1,336 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import java.lang.invoke.MethodHandles;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import hudson.ExtensionList;
+import hudson.ExtensionListListener;
+import jenkins.model.Jenkins;
+
+import org.jvnet.hudson.tools.versionnumber.VersionNumberCounters.Counter;
+import org.jvnet.hudson.tools.versionnumber.VersionNumberVariable.Context;
+
+/**
+ * The variables of version-number format-strings by name: the built-in ones and
+ * the {@link VersionNumberVariable}s contributed by plugins.
+ *
+ * <p>
+ * The table is immutable. It is built once, and again only when the extensions
+ * change (e.g. a plugin got installed). {@link VersionNumberTemplate}s resolve
+ * their blocks against it once, when compiled, and get compiled again when the
+ * table was replaced.
+ * </p>
+ */
+final class VersionNumberVariables {
+
+    /** Use Java 7 MethodHandles to get my class for logger. */
+    private static final Logger LOGGER = Logger.getLogger(MethodHandles.lookup().lookupClass().getCanonicalName());
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private static final Map<String, VersionNumberVariable> BUILT_IN;
+
+    static {
+        Map<String, VersionNumberVariable> builtIn = new HashMap<>();
+        for (VersionNumberVariable variable : new VersionNumberVariable[] {
+                new Empty(),
+                new BuildDateFormatted(),
+                new Numeric("BUILD_DAY", false, c -> c.buildDate.get(Calendar.DAY_OF_MONTH)),
+                new Numeric("BUILD_WEEK", false, c -> c.buildDate.get(Calendar.WEEK_OF_YEAR)),
+                new Numeric("BUILD_MONTH", false, c -> c.buildDate.get(Calendar.MONTH) + 1),
+                new Numeric("BUILD_YEAR", false, c -> c.buildDate.get(Calendar.YEAR)),
+                new BuiltInCounter(Counter.BUILDS_TODAY),
+                new BuiltInCounter(Counter.BUILDS_THIS_WEEK),
+                new BuiltInCounter(Counter.BUILDS_THIS_MONTH),
+                new BuiltInCounter(Counter.BUILDS_THIS_YEAR),
+                new BuiltInCounter(Counter.BUILDS_ALL_TIME),
+                new Numeric("BUILDS_TODAY_Z", false, c -> c.info.getBuildsToday() - 1),
+                new Numeric("BUILDS_THIS_MONTH_Z", false, c -> c.info.getBuildsThisMonth() - 1),
+                new Numeric("BUILDS_THIS_YEAR_Z", false, c -> c.info.getBuildsThisYear() - 1),
+                new Numeric("BUILDS_ALL_TIME_Z", false, c -> c.info.getBuildsAllTime() - 1),
+                new Numeric("MONTHS_SINCE_PROJECT_START", true, c -> {
+                    Calendar projectStartCal = Calendar.getInstance();
+                    projectStartCal.setTime(c.projectStartDate);
+                    int monthsSinceStart = c.buildDate.get(Calendar.MONTH) - projectStartCal.get(Calendar.MONTH);
+                    monthsSinceStart += (c.buildDate.get(Calendar.YEAR) - projectStartCal.get(Calendar.YEAR)) * 12;
+                    return monthsSinceStart;
+                }),
+                new Numeric("YEARS_SINCE_PROJECT_START", true, c -> {
+                    Calendar projectStartCal = Calendar.getInstance();
+                    projectStartCal.setTime(c.projectStartDate);
+                    return c.buildDate.get(Calendar.YEAR) - projectStartCal.get(Calendar.YEAR);
+                })}) {
+            builtIn.put(variable.getName(), variable);
+        }
+        BUILT_IN = Collections.unmodifiableMap(builtIn);
+    }
+
+    /** The table without any contributed variables, e.g. when Jenkins is not running. */
+    private static final VersionNumberVariables BUILT_IN_ONLY = new VersionNumberVariables(null, BUILT_IN, new VersionNumberCounter[0]);
+
+    private static volatile VersionNumberVariables current = BUILT_IN_ONLY;
+
+    /** The Jenkins whose extensions are listened to, if any. */
+    private static Jenkins listening;
+
+    /** The number of times the extensions changed, so a table built meanwhile is not kept. */
+    private static final AtomicInteger changes = new AtomicInteger();
+
+    /** The Jenkins whose extensions are included, or {@code null} for none. */
+    @CheckForNull
+    private final Jenkins jenkins;
+    private final Map<String, VersionNumberVariable> byName;
+    private final VersionNumberCounter[] counters;
+
+    private VersionNumberVariables(@CheckForNull Jenkins jenkins, Map<String, VersionNumberVariable> byName,
+                                   VersionNumberCounter[] counters) {
+        this.jenkins = jenkins;
+        this.byName = byName;
+        this.counters = counters;
+    }
+
+    /**
+     * Returns the current table.
+     */
+    @NonNull
+    static VersionNumberVariables get() {
+        VersionNumberVariables table = current;
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (table.jenkins != jenkins) {
+            table = load(jenkins);
+        }
+        return table;
+    }
+
+    private static synchronized VersionNumberVariables load(@CheckForNull Jenkins jenkins) {
+        if (current.jenkins == jenkins) {
+            return current;  // Someone else was faster.
+        }
+        if (jenkins == null) {
+            current = BUILT_IN_ONLY;
+            return current;
+        }
+        ExtensionList<VersionNumberVariable> extensions = VersionNumberVariable.all();
+        if (listening != jenkins) {
+            listening = jenkins;
+            extensions.addListener(new ExtensionListListener() {
+                @Override
+                public void onChange() {
+                    // The next lookup builds the table again.
+                    changes.incrementAndGet();
+                    current = BUILT_IN_ONLY;
+                }
+            });
+        }
+        int seen = changes.get();
+        Map<String, VersionNumberVariable> byName = new HashMap<>(BUILT_IN);
+        List<VersionNumberCounter> counters = new ArrayList<>();
+        for (VersionNumberVariable variable : extensions) {
+            String name = variable.getName();
+            if (!isValidName(name)) {
+                LOGGER.warning("Ignoring version-number variable " + variable.getClass().getName()
+                        + " with invalid name '" + name + "'");
+            } else if (byName.containsKey(name)) {
+                LOGGER.warning("Ignoring version-number variable " + variable.getClass().getName()
+                        + ", since " + byName.get(name).getClass().getName() + " is named '" + name + "' already");
+            } else {
+                byName.put(name, variable);
+                if (variable instanceof VersionNumberCounter) {
+                    counters.add((VersionNumberCounter) variable);
+                }
+            }
+        }
+        VersionNumberVariables table = new VersionNumberVariables(jenkins, Collections.unmodifiableMap(byName),
+                                                                  counters.toArray(new VersionNumberCounter[0]));
+        if (changes.get() == seen) {
+            current = table;
+        }
+        return table;
+    }
+
+    /**
+     * Returns whether the given name consists of letters, digits and
+     * underscores only, and does not start with a digit.
+     */
+    static boolean isValidName(@CheckForNull String name) {
+        return name != null && NAME.matcher(name).matches();
+    }
+
+    /**
+     * Returns the variable with the given name, or {@code null} if the name is
+     * left to the environment-variables.
+     */
+    @CheckForNull
+    VersionNumberVariable get(@NonNull String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * Returns the contributed counters. The array must not be changed.
+     */
+    @NonNull
+    VersionNumberCounter[] getCounters() {
+        return counters;
+    }
+
+    /**
+     * <code>${}</code>, which is replaced by nothing.
+     */
+    private static final class Empty extends VersionNumberVariable {
+        @Override
+        public String getName() {
+            return "";
+        }
+
+        @Override
+        public String getValue(Context context, String argument) {
+            return "";
+        }
+
+        @Override
+        boolean appendTo(StringBuilder sb, Context context, String argument, Object compiled) {
+            return true;
+        }
+    }
+
+    /**
+     * <code>${BUILD_DATE_FORMATTED, "yyyy-MM-dd"}</code>, the build date in the
+     * format given as argument, if any.
+     */
+    private static final class BuildDateFormatted extends VersionNumberVariable {
+        @Override
+        public String getName() {
+            return "BUILD_DATE_FORMATTED";
+        }
+
+        @Override
+        public String getValue(Context context, String argument) {
+            String fmtString = argument.isEmpty() ? null : VersionNumberTemplate.extractDateFormat(argument);
+            return VersionNumberDateFormat.format(fmtString, context.buildDate.getTime(), context.buildDate.getTimeZone());
+        }
+
+        @Override
+        Object compile(String argument) {
+            if (argument.isEmpty()) {
+                return null;
+            }
+            try {
+                return VersionNumberTemplate.extractDateFormat(argument);
+            } catch (RuntimeException e) {
+                return null;  // Fails again (the same way) when formatting.
+            }
+        }
+
+        @Override
+        boolean appendTo(StringBuilder sb, Context context, String argument, Object compiled) {
+            String fmtString = null;
+            if (!argument.isEmpty()) {
+                fmtString = compiled != null ? (String) compiled : VersionNumberTemplate.extractDateFormat(argument);
+            }
+            VersionNumberDateFormat.formatTo(fmtString, context.buildDate.getTimeInMillis(),
+                                             context.buildDate.getTimeZone(), sb);
+            return true;
+        }
+    }
+
+    /**
+     * One of the counters every build keeps, like <code>${BUILDS_TODAY}</code>.
+     *
+     * <p>
+     * These are computed all at once by {@link VersionNumberCounters}, which
+     * also applies their overrides and the periods configured for the job,
+     * rather than one by one through {@link #continues}. Asked on their own,
+     * they decide by the job's periods as well, which carry its week rule.
+     * </p>
+     */
+    private static final class BuiltInCounter extends VersionNumberCounter {
+        private final Counter counter;
+        /** The periods of the time zone asked for last, without a job's week rule. */
+        private volatile VersionNumberPeriods periods;
+
+        BuiltInCounter(Counter counter) {
+            this.counter = counter;
+        }
+
+        @Override
+        public String getName() {
+            return counter.name();
+        }
+
+        /**
+         * Decides in the time zone of the build, with weeks following the
+         * controller's locale, as there is no job to take the week rule from.
+         */
+        @Override
+        public boolean continues(ZonedDateTime build, ZonedDateTime previous) {
+            VersionNumberPeriods periods = this.periods;
+            if (periods == null || !periods.getZone().equals(build.getZone())) {
+                periods = VersionNumberPeriods.of(build.getZone().getId(), null);
+                this.periods = periods;
+            }
+            return continues(periods, build.toInstant().toEpochMilli(), previous.toInstant().toEpochMilli());
+        }
+
+        @Override
+        boolean continues(VersionNumberPeriods periods, long millis, long prevMillis) {
+            return (periods.getContinuing(millis, prevMillis) & counter.bit()) != 0;
+        }
+
+        @Override
+        boolean appendTo(StringBuilder sb, Context context, String argument, Object compiled) {
+            VersionNumberTemplate.appendPadded(sb, counter.get(context.info), argument.length());
+            return true;
+        }
+    }
+
+    /**
+     * A number, left-padded with zeros to the length of the argument.
+     */
+    private static final class Numeric extends VersionNumberVariable {
+        private final String name;
+        /** Whether there is no value without a project start date. */
+        private final boolean needsProjectStart;
+        private final ToIntFunction<Context> value;
+
+        Numeric(String name, boolean needsProjectStart, ToIntFunction<Context> value) {
+            this.name = name;
+            this.needsProjectStart = needsProjectStart;
+            this.value = value;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getValue(Context context, String argument) {
+            if (needsProjectStart && context.projectStartDate == null) {
+                return null;
+            }
+            return pad(value.applyAsInt(context), argument);
+        }
+
+        @Override
+        boolean appendTo(StringBuilder sb, Context context, String argument, Object compiled) {
+            if (needsProjectStart && context.projectStartDate == null) {
+                return false;
+            }
+            VersionNumberTemplate.appendPadded(sb, value.applyAsInt(context), argument.length());
+            return true;
+        }
+    }
+}
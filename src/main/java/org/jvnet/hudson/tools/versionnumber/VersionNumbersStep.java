@@ -0,0 +1,157 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+import net.sf.json.JSONObject;
+
+import org.jenkinsci.plugins.structs.describable.UninstantiatedDescribable;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.StaplerRequest2;
+
+import hudson.Extension;
+
+/**
+ * Returns several version numbers computed from the same counters, with a
+ * single lookup of the previous build and a single {@link VersionNumberAction}.
+ *
+ * Used like:
+ *
+ * <pre>
+ * def v = VersionNumbers(versionNumberStrings: [
+ *     maven:  '1.0.${BUILDS_ALL_TIME}',
+ *     docker: '1.0.${BUILDS_ALL_TIME}-${BUILD_DATE_FORMATTED, "yyyyMMdd"}'])
+ * echo v.docker
+ * </pre>
+ *
+ * All other parameters are the ones of {@link VersionNumberStep}. The
+ * configuration form (e.g. of the Snippet Generator) takes the format-strings
+ * one <code>name=format-string</code> per line.
+ */
+public class VersionNumbersStep extends VersionNumberStep {
+
+    private static final long serialVersionUID = 1L;
+
+    @SuppressFBWarnings(value = "SE_BAD_FIELD", justification = "Always an unmodifiable copy of a LinkedHashMap or empty.")
+    private Map<String, String> versionNumberStrings = Collections.emptyMap();
+
+    @DataBoundConstructor
+    public VersionNumbersStep() {
+    }
+
+    /**
+     * Sets the format-strings by name of their output. The first one is the
+     * version number of the build, e.g. for looking up the previous build by
+     * prefix.
+     */
+    public void setVersionNumberStrings(Map<String, String> versionNumberStrings) {
+        if (versionNumberStrings == null || versionNumberStrings.isEmpty()) {
+            throw new IllegalArgumentException("must specify at least one version number string.");
+        }
+        this.versionNumberStrings = Collections.unmodifiableMap(new LinkedHashMap<>(versionNumberStrings));
+    }
+
+    @Override
+    public Map<String, String> getVersionNumberStrings() {
+        return versionNumberStrings;
+    }
+
+    @Override
+    boolean isBatch() {
+        return true;
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends VersionNumberStep.DescriptorImpl {
+
+        @Override public String getFunctionName() {
+            return "VersionNumbers";
+        }
+
+        @Override public String getDisplayName() {
+            return "Determine several version numbers at once";
+        }
+
+        /**
+         * Binds the map of format-strings, which data-binding does not support.
+         */
+        @Override
+        public Step newInstance(Map<String, Object> arguments) throws Exception {
+            Map<String, Object> rest = new HashMap<>(arguments);
+            Object value = rest.remove("versionNumberStrings");
+            if (!(value instanceof Map)) {
+                throw new IllegalArgumentException("versionNumberStrings must be a map of names to version number strings.");
+            }
+            Map<String, String> versionNumberStrings = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (entry.getKey() == null || entry.getValue() == null) {
+                    throw new IllegalArgumentException("versionNumberStrings must not contain null names or values.");
+                }
+                versionNumberStrings.put(entry.getKey().toString(), entry.getValue().toString());
+            }
+            VersionNumbersStep step = (VersionNumbersStep) super.newInstance(rest);
+            step.setVersionNumberStrings(versionNumberStrings);
+            return step;
+        }
+
+        /**
+         * Binds the format-strings from the configuration form (e.g. of the
+         * Snippet Generator), one <code>name=format-string</code> per line.
+         */
+        @Override
+        public Step newInstance(StaplerRequest2 req, JSONObject formData) throws FormException {
+            String text = formData.optString("versionNumberStrings", "");
+            formData.remove("versionNumberStrings");
+            Map<String, String> versionNumberStrings = new LinkedHashMap<>();
+            for (String line : text.split("\\r?\\n")) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                int separator = line.indexOf('=');
+                if (separator <= 0) {
+                    throw new FormException("Expected name=format-string, got '" + line + "'", "versionNumberStrings");
+                }
+                versionNumberStrings.put(line.substring(0, separator).trim(), line.substring(separator + 1));
+            }
+            VersionNumbersStep step = (VersionNumbersStep) super.newInstance(req, formData);
+            try {
+                step.setVersionNumberStrings(versionNumberStrings);
+            } catch (IllegalArgumentException e) {
+                throw new FormException(e.getMessage(), "versionNumberStrings");
+            }
+            return step;
+        }
+
+        /**
+         * Adds the map of format-strings, so the step can be written back as
+         * script, e.g. for replaying a build.
+         */
+        @Override
+        public UninstantiatedDescribable uninstantiate(Step step) throws UnsupportedOperationException {
+            UninstantiatedDescribable described = super.uninstantiate(step);
+            Map<String, Object> arguments = new LinkedHashMap<>();
+            arguments.put("versionNumberStrings", new LinkedHashMap<>(((VersionNumbersStep) step).getVersionNumberStrings()));
+            arguments.putAll(described.getArguments());
+            return described.withArguments(arguments);
+        }
+
+        /**
+         * Returns the format-strings of the given step as the configuration
+         * form shows them, one <code>name=format-string</code> per line.
+         */
+        public String toText(VersionNumbersStep step) {
+            StringBuilder text = new StringBuilder();
+            if (step != null) {
+                for (Map.Entry<String, String> entry : step.getVersionNumberStrings().entrySet()) {
+                    text.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+                }
+            }
+            return text.toString();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.util.XStream2;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class VersionNumberActionTest {
+
+    private final XStream2 xstream = new XStream2();
+
+    @Test
+    void testCountersArePacked() {
+        VersionNumberAction action = new VersionNumberAction(new VersionNumberBuildInfo(1, 2, 3, 4, 5), "1.0.5");
+        String xml = xstream.toXML(action);
+        assertTrue(xml.contains("<counters>1,2,3,4,5</counters>"), xml);
+        assertFalse(xml.contains("<info>"), xml);
+
+        VersionNumberAction loaded = (VersionNumberAction) xstream.fromXML(xml);
+        assertEquals("1.0.5", loaded.getVersionNumber());
+        assertInfo(loaded.getInfo(), 1, 2, 3, 4, 5);
+        // Not parsed again when saved without being read.
+        assertEquals(xml, xstream.toXML(xstream.fromXML(xml)));
+    }
+
+    @Test
+    void testOptionalFieldsRoundTrip() {
+        VersionNumberTrace trace = new VersionNumberTrace();
+        trace.add("first");
+        trace.add("second");
+        VersionNumberAction action = new VersionNumberAction(new VersionNumberBuildInfo(1, 1, 1, 1, 7), "v7",
+                trace, Map.of("maven", "v7"), "key");
+
+        VersionNumberAction loaded = (VersionNumberAction) xstream.fromXML(xstream.toXML(action));
+        assertEquals(List.of("first", "second"), loaded.getTrace());
+        assertEquals(Map.of("maven", "v7"), loaded.getOutputs());
+        assertEquals("key", loaded.getKey());
+    }
+
+    @Test
+    void testSensitiveValuesAreMasked() {
+        VersionNumberTrace trace = new VersionNumberTrace(Map.of("TOKEN", "s3cr3t", "TOKEN_PREFIX", "s3c", "BRANCH", "main"),
+                List.of("TOKEN", "TOKEN_PREFIX", "UNSET"));
+        trace.add("Replacing '${TOKEN}' with 's3cr3t' on main");
+        trace.add("Replacing '${TOKEN_PREFIX}' with 's3c'");
+        assertEquals(List.of("Replacing '${TOKEN}' with '****' on main", "Replacing '${TOKEN_PREFIX}' with '****'"),
+                trace.getLines());
+    }
+
+    @Test
+    void testOldFormatIsRead() {
+        String xml = "<org.jvnet.hudson.tools.versionnumber.VersionNumberAction>\n"
+                + "  <info>\n"
+                + "    <buildsToday>3</buildsToday>\n"
+                + "    <buildsThisWeek>8</buildsThisWeek>\n"
+                + "    <buildsThisMonth>20</buildsThisMonth>\n"
+                + "    <buildsThisYear>150</buildsThisYear>\n"
+                + "    <buildsAllTime>1234</buildsAllTime>\n"
+                + "  </info>\n"
+                + "  <versionNumber>1.2.1234</versionNumber>\n"
+                + "</org.jvnet.hudson.tools.versionnumber.VersionNumberAction>";
+        VersionNumberAction action = (VersionNumberAction) xstream.fromXML(xml);
+        assertEquals("1.2.1234", action.getVersionNumber());
+        assertInfo(action.getInfo(), 3, 8, 20, 150, 1234);
+        assertTrue(action.getTrace().isEmpty());
+        assertTrue(xstream.toXML(action).contains("<counters>3,8,20,150,1234</counters>"));
+    }
+
+    private static void assertInfo(VersionNumberBuildInfo info, int today, int week, int month, int year, int allTime) {
+        assertEquals(today, info.getBuildsToday());
+        assertEquals(week, info.getBuildsThisWeek());
+        assertEquals(month, info.getBuildsThisMonth());
+        assertEquals(year, info.getBuildsThisYear());
+        assertEquals(allTime, info.getBuildsAllTime());
+    }
+}
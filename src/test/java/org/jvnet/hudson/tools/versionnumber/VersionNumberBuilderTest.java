@@ -1,7 +1,9 @@
 package org.jvnet.hudson.tools.versionnumber;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.EnvVars;
@@ -9,14 +11,38 @@ import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
+import hudson.model.Cause;
+import hudson.model.EnvironmentContributor;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
 import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import hudson.model.TaskListener;
+import hudson.model.queue.QueueTaskFuture;
 import hudson.scm.NullSCM;
 import hudson.slaves.EnvironmentVariablesNodeProperty;
 import java.io.File;
+import java.io.StringReader;
+import java.net.URL;
+import java.nio.file.Files;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.json.JSONObject;
+import org.htmlunit.HttpMethod;
+import org.htmlunit.WebRequest;
+import org.htmlunit.html.HtmlForm;
 import org.junit.jupiter.api.Test;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.SleepBuilder;
+import org.jvnet.hudson.test.TestExtension;
 import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
 
 @WithJenkins
@@ -115,6 +141,354 @@ class VersionNumberBuilderTest {
         assertBuildsAllTime(4, build);
     }
 
+    @Test
+    void testVersionNumberIndexIsRebuiltAndKeptCurrent(JenkinsRule r) throws Exception {
+        FreeStyleProject job = r.createFreeStyleProject("versionNumberJob");
+        VersionNumberBuilder versionNumberBuilder = new VersionNumberBuilder(
+                "1.0.${BUILDS_ALL_TIME}", null, null, null, null, null, null, null, null, false);
+        job.getBuildWrappersList().add(versionNumberBuilder);
+        r.buildAndAssertSuccess(job);
+        r.buildAndAssertSuccess(job);
+        File indexFile = new File(job.getRootDir(), VersionNumberIndex.FILE_NAME);
+        assertTrue(indexFile.isFile());
+
+        // A corrupt index gets rebuilt from the build history.
+        Files.writeString(indexFile.toPath(), "garbage");
+        VersionNumberIndex.forget(job);
+        FreeStyleBuild build = r.buildAndAssertSuccess(job);
+        assertBuildsAllTime(3, build);
+
+        // Deleted builds are dropped from the index.
+        build.delete();
+        build = r.buildAndAssertSuccess(job);
+        assertBuildsAllTime(3, build);
+
+        // A build deleted while the index is not in memory is only noted in the journal.
+        VersionNumberIndex.forget(job);
+        build.delete();
+        assertNull(VersionNumberIndex.of(job).peek(2));
+        assertTrue(Files.readString(indexFile.toPath()).endsWith("-\t" + build.getNumber() + "\n"));
+        build = r.buildAndAssertSuccess(job);
+        assertBuildsAllTime(3, build);
+
+        // A missing index gets rebuilt, too.
+        VersionNumberIndex.forget(job);
+        Files.delete(indexFile.toPath());
+        build = r.buildAndAssertSuccess(job);
+        assertBuildsAllTime(4, build);
+        assertEquals("1.0.4", VersionNumberIndex.of(job).get(build.getNumber()).getVersionNumber());
+    }
+
+    @Test
+    void testVersionNumberIndexesAreWarmedUp(JenkinsRule r) throws Exception {
+        FreeStyleProject job = r.createFreeStyleProject("versionNumberJob");
+        VersionNumberBuilder versionNumberBuilder = new VersionNumberBuilder(
+                "1.0.${BUILDS_ALL_TIME}", null, null, null, null, null, null, null, null, false);
+        job.getBuildWrappersList().add(versionNumberBuilder);
+        r.buildAndAssertSuccess(job);
+        r.buildAndAssertSuccess(job);
+        r.createFreeStyleProject("otherJob");
+
+        VersionNumberIndex.forget(job);
+        Files.delete(new File(job.getRootDir(), VersionNumberIndex.FILE_NAME).toPath());
+        VersionNumberIndexWarmUp.Progress progress = VersionNumberIndexWarmUp.start(true);
+        while (progress.isRunning()) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, progress.getTotal());
+        assertEquals(1, progress.getLoaded());
+        assertEquals(0, progress.getFailed());
+        assertFalse(VersionNumberIndex.of(job).isLoading());
+        assertEquals("1.0.2", VersionNumberIndex.of(job).get(2).getVersionNumber());
+
+        FreeStyleBuild build = r.buildAndAssertSuccess(job);
+        assertBuildsAllTime(3, build);
+        r.createWebClient().goTo("manage/versionnumber-index/");
+    }
+
+    @Test
+    void testCompletedPreviousBuildIsNotLoaded(JenkinsRule r) throws Exception {
+        FreeStyleProject job = r.createFreeStyleProject("versionNumberJob");
+        job.getBuildWrappersList().add(new VersionNumberBuilder(
+                "1.0.${BUILDS_TODAY}.${BUILDS_ALL_TIME}", null, null, null, null, null, null, null, null, false));
+        r.buildAndAssertSuccess(job);
+        assertTrue(VersionNumberIndex.of(job).get(1).isComplete());
+
+        long visited = VersionNumberMetrics.getRunsVisited().getSum();
+        FreeStyleBuild build = r.buildAndAssertSuccess(job);
+        assertEquals(visited, VersionNumberMetrics.getRunsVisited().getSum());
+        assertBuildsAllTime(2, build);
+        assertEquals(2, build.getAction(VersionNumberAction.class).getInfo().getBuildsToday());
+    }
+
+    @Test
+    void testBuildsAreFoundByVersionNumber(JenkinsRule r) throws Exception {
+        FreeStyleProject job = r.createFreeStyleProject("versionNumberJob");
+        job.getBuildWrappersList().add(new VersionNumberBuilder(
+                "1.0.${BUILDS_ALL_TIME}", null, null, null, null, null, null, null, null, false));
+        FreeStyleProject other = r.createFreeStyleProject("otherJob");
+        other.getBuildWrappersList().add(new VersionNumberBuilder(
+                "1.0.${BUILDS_ALL_TIME}", null, null, null, null, null, null, null, null, false));
+        FreeStyleBuild first = r.buildAndAssertSuccess(job);
+        r.buildAndAssertSuccess(job);
+        r.assertLogNotContains("other build", first);
+        // Other jobs sharing the format-string are expected to share version-numbers.
+        r.assertLogNotContains("other build", r.buildAndAssertSuccess(other));
+        FreeStyleProject constant = r.createFreeStyleProject("constantJob");
+        constant.getBuildWrappersList().add(new VersionNumberBuilder(
+                "2.0", null, null, null, null, null, null, null, null, false));
+        r.buildAndAssertSuccess(constant);
+        FreeStyleBuild duplicate = r.buildAndAssertSuccess(constant);
+        r.assertLogContains("Version number '2.0' was given to 1 other build(s) of this job already: #1", duplicate);
+
+        String json = r.createWebClient().goTo("versionnumber-lookup/?version=1.0.2", "application/json")
+                .getWebResponse().getContentAsString();
+        JSONObject found = JSONObject.fromObject(json);
+        assertEquals(1, found.getJSONArray("builds").size(), json);
+        assertEquals("versionNumberJob", found.getJSONArray("builds").getJSONObject(0).getString("job"));
+        assertEquals(2, found.getJSONArray("builds").getJSONObject(0).getInt("number"));
+
+        json = r.createWebClient().goTo("versionnumber-lookup/?version=1.0.1", "application/json")
+                .getWebResponse().getContentAsString();
+        assertEquals(2, JSONObject.fromObject(json).getJSONArray("builds").size(), json);
+
+        first.delete();
+        assertEquals(1, VersionNumberReverseIndex.find("1.0.1").size());
+        assertTrue(VersionNumberReverseIndex.find("2.0.1").isEmpty());
+        assertEquals(r.getURL() + "job/versionNumberJob/2/",
+                r.createWebClient().goTo("search/?q=1.0.2").getUrl().toString());
+    }
+
+    @Test
+    void testVersionNumberHistoryIsExportedAndImported(JenkinsRule r) throws Exception {
+        FreeStyleProject job = r.createFreeStyleProject("versionNumberJob");
+        job.getBuildWrappersList().add(new VersionNumberBuilder(
+                "1.0.${BUILDS_ALL_TIME}", null, null, null, null, null, null, null, null, false));
+        for (int i = 0; i < 3; i++) {
+            r.buildAndAssertSuccess(job);
+        }
+        JenkinsRule.WebClient wc = r.createWebClient();
+        String history = wc.goTo("versionnumber-history/export?job=versionNumberJob", "application/x-ndjson")
+                .getWebResponse().getContentAsString();
+        String[] lines = history.split("\n");
+        assertEquals(3, lines.length, history);
+        assertEquals("1.0.3", JSONObject.fromObject(lines[2]).getString("version"));
+
+        // A copy of the job without its builds continues the sequence.
+        FreeStyleProject copy = r.createFreeStyleProject("copiedJob");
+        copy.getBuildWrappersList().add(new VersionNumberBuilder(
+                "1.0.${BUILDS_ALL_TIME}", null, null, null, null, null, null, null, null, false));
+        WebRequest request = new WebRequest(new URL(r.getURL(), "versionnumber-history/import?job=copiedJob"), HttpMethod.POST);
+        request.setRequestBody(history);
+        wc.addCrumb(request);
+        JSONObject imported = JSONObject.fromObject(wc.getPage(request).getWebResponse().getContentAsString());
+        assertEquals(3, imported.getInt("imported"), imported.toString());
+        assertEquals(4, copy.getNextBuildNumber());
+        FreeStyleBuild build = r.buildAndAssertSuccess(copy);
+        assertEquals("1.0.4", build.getAction(VersionNumberAction.class).getVersionNumber());
+
+        // The imported builds survive rebuilding the index, and importing them again changes nothing.
+        VersionNumberIndex.forget(copy);
+        VersionNumberIndex.of(copy).load(true);
+        assertEquals("1.0.1", VersionNumberIndex.of(copy).get(1).getVersionNumber());
+        imported = VersionNumberHistory.importFrom(copy, new StringReader(history));
+        assertEquals(0, imported.getInt("imported"), imported.toString());
+        File kept = new File(copy.getRootDir(), VersionNumberHistory.IMPORTED_FILE_NAME);
+        assertEquals(3, Files.readAllLines(kept.toPath()).size());
+
+        request.setRequestBody("{\"number\":\"first\"}");
+        wc.setThrowExceptionOnFailingStatusCode(false);
+        assertEquals(400, wc.getPage(request).getWebResponse().getStatusCode());
+    }
+
+    @Test
+    void testContributedVariablesAndCounters(JenkinsRule r) throws Exception {
+        FreeStyleProject job = r.createFreeStyleProject("versionNumberJob");
+        job.getBuildWrappersList().add(new VersionNumberBuilder(
+                "${ANSWER, XXX}.${BUILDS_THIS_CENTURY}", null, null, null, null, null, null, null, null, false));
+        r.buildAndAssertSuccess(job);
+        FreeStyleBuild build = r.buildAndAssertSuccess(job);
+        assertEquals("042.2", build.getAction(VersionNumberAction.class).getVersionNumber());
+
+        // The counter is kept with the build and in the index, for the next build to continue from.
+        String buildXml = Files.readString(new File(build.getRootDir(), "build.xml").toPath());
+        assertTrue(buildXml.contains(";BUILDS_THIS_CENTURY=2</counters>"), buildXml);
+        VersionNumberIndex.forget(job);
+        assertEquals(2, VersionNumberIndex.of(job).get(build.getNumber()).getInfo().getCounter("BUILDS_THIS_CENTURY"));
+        build = r.buildAndAssertSuccess(job);
+        assertEquals("042.3", build.getAction(VersionNumberAction.class).getVersionNumber());
+
+        // Environment-variables are expanded first, so only a block with an argument gets the variable.
+        EnvironmentVariablesNodeProperty prop = new EnvironmentVariablesNodeProperty();
+        prop.getEnvVars().put("ANSWER", "env");
+        r.jenkins.getGlobalNodeProperties().add(prop);
+        job.getBuildWrappersList().clear();
+        job.getBuildWrappersList().add(new VersionNumberBuilder(
+                "${ANSWER}-${ANSWER, XXX}", null, null, null, null, null, null, null, null, false));
+        build = r.buildAndAssertSuccess(job);
+        assertEquals("env-042", build.getAction(VersionNumberAction.class).getVersionNumber());
+    }
+
+    @TestExtension("testContributedVariablesAndCounters")
+    public static class AnswerVariable extends VersionNumberVariable {
+        @Override
+        public String getName() {
+            return "ANSWER";
+        }
+
+        @Override
+        public String getValue(VersionNumberVariable.Context context, String argument) {
+            return pad(42, argument);
+        }
+    }
+
+    @TestExtension("testContributedVariablesAndCounters")
+    public static class BuildsThisCenturyCounter extends VersionNumberCounter {
+        @Override
+        public String getName() {
+            return "BUILDS_THIS_CENTURY";
+        }
+
+        @Override
+        public boolean continues(ZonedDateTime build, ZonedDateTime previous) {
+            return build.getYear() / 100 == previous.getYear() / 100;
+        }
+    }
+
+    @Test
+    void testCountersNotInFormatStringAreKept(JenkinsRule r) throws Exception {
+        FreeStyleProject job = r.createFreeStyleProject("versionNumberJob");
+        VersionNumberBuilder versionNumberBuilder = new VersionNumberBuilder(
+                "1.0.${BUILDS_ALL_TIME}", null, null, null, null, null, null, null, null, false);
+        job.getBuildWrappersList().add(versionNumberBuilder);
+        r.buildAndAssertSuccess(job);
+        FreeStyleBuild build = r.buildAndAssertSuccess(job);
+
+        // Counters not used by the format-string are persisted with the build and in the index.
+        String buildXml = Files.readString(new File(build.getRootDir(), "build.xml").toPath());
+        assertTrue(buildXml.contains(",2,2</counters>"), buildXml);
+        VersionNumberIndex.forget(job);
+        assertEquals(2, VersionNumberIndex.of(job).get(build.getNumber()).getInfo().getBuildsThisYear());
+        assertEquals(2, build.getAction(VersionNumberAction.class).getInfo().getBuildsThisYear());
+    }
+
+    @Test
+    void testConcurrentBuildsGetUniqueVersionNumbers(JenkinsRule r) throws Exception {
+        r.jenkins.setNumExecutors(4);
+        FreeStyleProject job = r.createFreeStyleProject("versionNumberJob");
+        job.setConcurrentBuild(true);
+        job.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("RUN", "")));
+        VersionNumberBuilder versionNumberBuilder = new VersionNumberBuilder(
+                "1.0.${BUILDS_ALL_TIME}", null, null, null, null, null, null, null, null, false);
+        job.getBuildWrappersList().add(versionNumberBuilder);
+        job.getBuildersList().add(new SleepBuilder(500));
+
+        List<QueueTaskFuture<FreeStyleBuild>> builds = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            builds.add(job.scheduleBuild2(0, new Cause.UserIdCause(),
+                    new ParametersAction(new StringParameterValue("RUN", Integer.toString(i)))));
+        }
+        Set<Integer> buildsAllTime = new TreeSet<>();
+        for (QueueTaskFuture<FreeStyleBuild> build : builds) {
+            buildsAllTime.add(r.assertBuildStatusSuccess(build).getAction(VersionNumberAction.class).getInfo().getBuildsAllTime());
+        }
+        assertEquals(Set.of(1, 2, 3, 4, 5, 6, 7, 8), buildsAllTime);
+    }
+
+    @Test
+    void testBuildsGettingVersionNumbersOutOfOrder(JenkinsRule r) throws Exception {
+        r.jenkins.setNumExecutors(2);
+        FreeStyleProject job = r.createFreeStyleProject("versionNumberJob");
+        job.setConcurrentBuild(true);
+        job.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("RUN", "")));
+        VersionNumberBuilder versionNumberBuilder = new VersionNumberBuilder(
+                "1.0.${BUILDS_ALL_TIME}", null, null, null, null, null, null, null, null, false);
+        job.getBuildWrappersList().add(versionNumberBuilder);
+        r.buildAndAssertSuccess(job);
+
+        // #2 waits for #3 to get its version-number (see HoldBackSecondBuild).
+        QueueTaskFuture<FreeStyleBuild> second = job.scheduleBuild2(0, new Cause.UserIdCause(),
+                new ParametersAction(new StringParameterValue("RUN", "2")));
+        QueueTaskFuture<FreeStyleBuild> third = job.scheduleBuild2(0, new Cause.UserIdCause(),
+                new ParametersAction(new StringParameterValue("RUN", "3")));
+        assertEquals("1.0.3", r.assertBuildStatusSuccess(second).getAction(VersionNumberAction.class).getVersionNumber());
+        assertEquals("1.0.2", r.assertBuildStatusSuccess(third).getAction(VersionNumberAction.class).getVersionNumber());
+
+        // #4 continues from #2, which got the last version-number, rather than from #3.
+        FreeStyleBuild fourth = r.buildAndAssertSuccess(job);
+        assertEquals("1.0.4", fourth.getAction(VersionNumberAction.class).getVersionNumber());
+    }
+
+    @TestExtension("testBuildsGettingVersionNumbersOutOfOrder")
+    public static class HoldBackSecondBuild extends EnvironmentContributor {
+        @Override
+        public void buildEnvironmentFor(@NonNull Run run, @NonNull EnvVars envs, @NonNull TaskListener listener)
+                throws InterruptedException {
+            if (run.getNumber() != 2) {
+                return;
+            }
+            long deadline = System.currentTimeMillis() + 60_000;
+            Run<?, ?> third = run.getParent().getBuildByNumber(3);
+            while (third == null || third.getAction(VersionNumberAction.class) == null) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new AssertionError("Build #3 did not get a version-number");
+                }
+                Thread.sleep(10);
+                third = run.getParent().getBuildByNumber(3);
+            }
+        }
+    }
+
+    @Test
+    void testEnvironmentIsResolvedOncePerBuild(JenkinsRule r) throws Exception {
+        FreeStyleProject job = r.createFreeStyleProject("versionNumberJob");
+        VersionNumberBuilder versionNumberBuilder = new VersionNumberBuilder(
+                "${PREFIX}.${BUILDS_ALL_TIME}", null, null, "PREFIX", null, null, null, null, "${OVERRIDE}", false, true);
+        EnvironmentVariablesNodeProperty prop = new EnvironmentVariablesNodeProperty();
+        prop.getEnvVars().put("PREFIX", "1.0");
+        prop.getEnvVars().put("OVERRIDE", "7");
+        r.jenkins.getGlobalNodeProperties().add(prop);
+        job.getBuildWrappersList().add(versionNumberBuilder);
+
+        long before = VersionNumberMetrics.getStage(VersionNumberMetrics.Stage.ENVIRONMENT).getCount();
+        FreeStyleBuild build = r.buildAndAssertSuccess(job);
+        assertEquals("1.0.7", build.getDisplayName());
+        assertEquals(before + 1, VersionNumberMetrics.getStage(VersionNumberMetrics.Stage.ENVIRONMENT).getCount());
+    }
+
+    @Test
+    void testMetricsAreServedAsJson(JenkinsRule r) throws Exception {
+        FreeStyleProject job = r.createFreeStyleProject("versionNumberJob");
+        VersionNumberBuilder versionNumberBuilder = new VersionNumberBuilder(
+                "1.0.${BUILDS_ALL_TIME}", null, null, null, null, null, null, null, null, false);
+        job.getBuildWrappersList().add(versionNumberBuilder);
+        r.buildAndAssertSuccess(job);
+
+        String json = r.createWebClient().goTo("versionnumber-metrics/", "application/json")
+                .getWebResponse().getContentAsString();
+        JSONObject stages = JSONObject.fromObject(json).getJSONObject("stages");
+        assertTrue(stages.getJSONObject("total").getLong("count") >= 1, json);
+        assertTrue(stages.getJSONObject("lookup").getLong("count") >= 1, json);
+        assertTrue(stages.getJSONObject("environment").getLong("count") >= 1, json);
+    }
+
+    @Test
+    void testExpansionIsTracedOnlyWhenEnabled(JenkinsRule r) throws Exception {
+        FreeStyleProject job = r.createFreeStyleProject("versionNumberJob");
+        VersionNumberBuilder versionNumberBuilder = new VersionNumberBuilder(
+                "1.0.${BUILDS_ALL_TIME}", null, null, null, null, null, null, null, null, false);
+        job.getBuildWrappersList().add(versionNumberBuilder);
+        FreeStyleBuild build = r.buildAndAssertSuccess(job);
+        assertTrue(build.getAction(VersionNumberAction.class).getTrace().isEmpty());
+
+        versionNumberBuilder.setTraceExpansion(true);
+        build = r.buildAndAssertSuccess(job);
+        List<String> trace = build.getAction(VersionNumberAction.class).getTrace();
+        assertTrue(trace.contains("Previous build's version-number: #1 '1.0.1'"), trace.toString());
+        assertTrue(trace.contains("Version-number format-string after expansion of all variables: '1.0.2'"), trace.toString());
+        r.createWebClient().getPage(build, "versionnumber");
+    }
+
     @Test
     void testUseAsBuildDisplayName(JenkinsRule r) throws Exception {
         FreeStyleProject job = r.createFreeStyleProject("versionNumberJob");
@@ -196,6 +570,50 @@ class VersionNumberBuilderTest {
         assertEquals("", versionNumberBuilder.getBuildsThisYear());
     }
 
+    @Test
+    void testUsedOverridesAreNotAppliedAgain(JenkinsRule r) throws Exception {
+        FreeStyleProject job = r.createFreeStyleProject("versionNumberJob");
+        VersionNumberBuilder versionNumberBuilder = new VersionNumberBuilder(
+                "1.0.${BUILDS_ALL_TIME}", null, null, null, null, null, null, null, "500", false, true);
+        job.getBuildWrappersList().add(versionNumberBuilder);
+        File config = job.getConfigFile().getFile();
+        File record = new File(job.getRootDir(), VersionNumberOverrides.FILE_NAME);
+        String configBefore = Files.readString(config.toPath());
+        assertTrue(configBefore.contains(">500<"), configBefore);
+
+        FreeStyleBuild build = r.buildAndAssertSuccess(job);
+        assertEquals("1.0.500", build.getDisplayName());
+        // The job configuration is not saved by the build...
+        assertEquals(configBefore, Files.readString(config.toPath()));
+        assertTrue(record.isFile());
+
+        // ...but the used override is skipped, even if the configuration with it is posted again...
+        job.updateByXml(new StreamSource(new StringReader(configBefore)));
+        build = r.buildAndAssertSuccess(job);
+        assertEquals("1.0.501", build.getDisplayName());
+
+        // ...or read again after a restart.
+        r.jenkins.reload();
+        job = r.jenkins.getItemByFullName("versionNumberJob", FreeStyleProject.class);
+        assertEquals("500", job.getBuildWrappersList().get(VersionNumberBuilder.class).getBuildsAllTime());
+        build = r.buildAndAssertSuccess(job);
+        assertEquals("1.0.502", build.getDisplayName());
+
+        // Entering the used value again in the job configuration applies it once more.
+        HtmlForm form = r.createWebClient().getPage(job, "configure").getFormByName("config");
+        form.getInputByName("_.buildsAllTime").setValue("500");
+        r.submit(form);
+        build = r.buildAndAssertSuccess(job);
+        assertEquals("1.0.500", build.getDisplayName());
+
+        // Saving the job without the override forgets it was used.
+        r.configRoundtrip(job);
+        assertFalse(record.isFile());
+        assertFalse(Files.readString(config.toPath()).contains(">500<"));
+        build = r.buildAndAssertSuccess(job);
+        assertEquals("1.0.501", build.getDisplayName());
+    }
+
     @Test
     void testSubstringFromEnvironmentVariable(JenkinsRule r) throws Exception {
         FreeStyleProject job = r.createFreeStyleProject("versionNumberJob");
@@ -0,0 +1,110 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Measures the heap taken by the index of a synthetic history of 50000 builds,
+ * using the live-object histogram of the JVM, against the layout the index
+ * entries used to have (an object with five <code>int</code>s for the counters
+ * and a separate string for each version-number).
+ */
+class VersionNumberIndexFootprintTest {
+
+    private static final int BUILDS = 50000;
+
+    @Test
+    void testIndexIsCompact() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName diagnostics = new ObjectName("com.sun.management:type=DiagnosticCommand");
+        assumeTrue(server.isRegistered(diagnostics), "Needs a HotSpot JVM");
+
+        List<String> records = new ArrayList<>();
+        for (int number = 1; number <= BUILDS; number++) {
+            records.add("+\t" + number + '\t' + (1700000000000L + number * 60000L) + "\tSUCCESS\t"
+                    + (1 + number % 7) + ',' + (1 + number % 30) + ',' + (1 + number % 120) + ','
+                    + (1 + number % 1400) + ',' + number + "\t1.0.\t1.0." + number);
+        }
+
+        long start = liveBytes(server, diagnostics);
+        NavigableMap<Integer, Object> legacy = new TreeMap<>();
+        for (String record : records) {
+            String[] fields = record.split("\t", -1);
+            String[] counters = fields[4].split(",");
+            legacy.put(Integer.valueOf(fields[1]), new LegacyEntry(Integer.parseInt(fields[1]), Long.parseLong(fields[2]),
+                    new LegacyInfo(Integer.parseInt(counters[0]), Integer.parseInt(counters[1]),
+                                   Integer.parseInt(counters[2]), Integer.parseInt(counters[3]),
+                                   Integer.parseInt(counters[4])),
+                    new String(fields[6]), new String(fields[5])));
+        }
+        long legacyBytes = liveBytes(server, diagnostics) - start;
+
+        start = liveBytes(server, diagnostics);
+        NavigableMap<Integer, VersionNumberIndex.Entry> entries = new TreeMap<>();
+        for (String record : records) {
+            VersionNumberIndex.Entry entry = VersionNumberIndex.Entry.fromRecord(record);
+            entries.put(entry.getNumber(), entry);
+        }
+        long bytes = liveBytes(server, diagnostics) - start;
+
+        System.out.println("Index of " + BUILDS + " builds: " + bytes + " bytes, formerly " + legacyBytes + " bytes");
+        assertEquals("1.0." + BUILDS, entries.lastEntry().getValue().getVersionNumber());
+        assertTrue(bytes < legacyBytes * 2 / 3, bytes + " bytes, formerly " + legacyBytes + " bytes");
+        Reference.reachabilityFence(records);
+        Reference.reachabilityFence(legacy);
+    }
+
+    /** Returns the bytes taken by all live objects, after a full GC. */
+    private static long liveBytes(MBeanServer server, ObjectName diagnostics) throws Exception {
+        String histogram = (String) server.invoke(diagnostics, "gcClassHistogram",
+                new Object[] {new String[0]}, new String[] {String[].class.getName()});
+        String[] lines = histogram.trim().split("\n");
+        // The last line is "Total <instances> <bytes>".
+        String[] total = lines[lines.length - 1].trim().split("\\s+");
+        return Long.parseLong(total[2]);
+    }
+
+    private static final class LegacyInfo {
+        final int buildsToday;
+        final int buildsThisWeek;
+        final int buildsThisMonth;
+        final int buildsThisYear;
+        final int buildsAllTime;
+
+        LegacyInfo(int buildsToday, int buildsThisWeek, int buildsThisMonth, int buildsThisYear, int buildsAllTime) {
+            this.buildsToday = buildsToday;
+            this.buildsThisWeek = buildsThisWeek;
+            this.buildsThisMonth = buildsThisMonth;
+            this.buildsThisYear = buildsThisYear;
+            this.buildsAllTime = buildsAllTime;
+        }
+    }
+
+    private static final class LegacyEntry {
+        final int number;
+        final long timestamp;
+        final Object result = null;
+        final LegacyInfo info;
+        final String versionNumber;
+        final String prefix;
+
+        LegacyEntry(int number, long timestamp, LegacyInfo info, String versionNumber, String prefix) {
+            this.number = number;
+            this.timestamp = timestamp;
+            this.info = info;
+            this.versionNumber = versionNumber;
+            this.prefix = prefix;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.EnvVars;
+import org.junit.jupiter.api.Test;
+
+class VersionNumberOverrideTest {
+
+    @Test
+    void testParse() {
+        assertSame(VersionNumberOverride.NONE, VersionNumberOverride.parse(null));
+        assertSame(VersionNumberOverride.NONE, VersionNumberOverride.parse("  "));
+        assertSame(VersionNumberOverride.NONE, VersionNumberOverride.parse("-1"));
+        assertSame(VersionNumberOverride.NONE, VersionNumberOverride.parse("junk"));
+        assertSame(VersionNumberOverride.NONE, VersionNumberOverride.parse("${NOT CLOSED"));
+
+        VersionNumberOverride literal = VersionNumberOverride.parse(" 007 ");
+        assertTrue(literal.isLiteral());
+        assertEquals("7", literal.toString());
+
+        VersionNumberOverride variable = VersionNumberOverride.parse("${NEXT}");
+        assertFalse(variable.isLiteral());
+        assertFalse(variable.isNone());
+        assertEquals("${NEXT}", variable.toString());
+        assertEquals("$NEXT", VersionNumberOverride.parse("$NEXT").toString());
+    }
+
+    @Test
+    void testResolve() {
+        EnvVars env = new EnvVars();
+        env.put("NEXT", "42");
+        env.put("NEGATIVE", "-3");
+        env.put("JUNK", "4 2");
+
+        assertEquals(7, VersionNumberOverride.parse("7").resolve(null));
+        assertEquals(42, VersionNumberOverride.parse("${NEXT}").resolve(env));
+        assertEquals(42, VersionNumberOverride.parse("$next").resolve(env));
+        assertNull(VersionNumberOverride.parse("${NEGATIVE}").resolve(env));
+        assertNull(VersionNumberOverride.parse("${JUNK}").resolve(env));
+        assertNull(VersionNumberOverride.parse("${UNDEFINED}").resolve(env));
+        assertNull(VersionNumberOverride.NONE.resolve(env));
+    }
+}
@@ -0,0 +1,98 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.ZonedDateTime;
+import java.util.Locale;
+import org.jvnet.hudson.tools.versionnumber.VersionNumberCounters.Counter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class VersionNumberPeriodsTest {
+
+    private static final int ALL_TIME = Counter.BUILDS_ALL_TIME.bit();
+    private static final int YEAR = ALL_TIME | Counter.BUILDS_THIS_YEAR.bit();
+    private static final int MONTH = YEAR | Counter.BUILDS_THIS_MONTH.bit();
+    private static final int MONTH_AND_WEEK = MONTH | Counter.BUILDS_THIS_WEEK.bit();
+    private static final int DAY = MONTH_AND_WEEK | Counter.BUILDS_TODAY.bit();
+
+    private Locale locale;
+
+    @BeforeEach
+    void setUp() {
+        locale = Locale.getDefault(Locale.Category.FORMAT);
+        // Weeks start on Sunday.
+        Locale.setDefault(Locale.Category.FORMAT, Locale.US);
+    }
+
+    @AfterEach
+    void tearDown() {
+        Locale.setDefault(Locale.Category.FORMAT, locale);
+    }
+
+    private static long millis(String dateTime) {
+        return ZonedDateTime.parse(dateTime).toInstant().toEpochMilli();
+    }
+
+    @Test
+    void countersContinueWithinTheirPeriods() {
+        VersionNumberPeriods periods = VersionNumberPeriods.of("UTC", null);
+        assertEquals(DAY, periods.getContinuing(millis("2024-03-05T23:59:59Z"), millis("2024-03-05T00:00:00Z")));
+        assertEquals(MONTH_AND_WEEK, periods.getContinuing(millis("2024-03-06T00:00:00Z"), millis("2024-03-05T23:59:59Z")));
+        assertEquals(MONTH, periods.getContinuing(millis("2024-03-10T00:00:00Z"), millis("2024-03-09T23:59:59Z")));
+        assertEquals(YEAR | Counter.BUILDS_THIS_WEEK.bit(),
+                periods.getContinuing(millis("2024-04-01T00:00:00Z"), millis("2024-03-31T23:59:59Z")));
+        assertEquals(ALL_TIME, periods.getContinuing(millis("2025-01-01T00:00:00Z"), millis("2024-12-31T23:59:59Z")));
+    }
+
+    @Test
+    void daysEndInTheConfiguredTimeZone() {
+        long previous = millis("2024-03-05T10:00:00Z");
+        long next = millis("2024-03-05T12:00:00Z");
+        assertEquals(DAY, VersionNumberPeriods.of("UTC", null).getContinuing(next, previous));
+        // Midnight in Auckland (UTC+13) is 11:00 UTC.
+        assertEquals(MONTH_AND_WEEK, VersionNumberPeriods.of("Pacific/Auckland", null).getContinuing(next, previous));
+    }
+
+    @Test
+    void weeksSpanningNewYear() {
+        // Monday and Tuesday of the same week, but in different years.
+        long previous = millis("2024-12-30T12:00:00Z");
+        long next = millis("2025-01-01T12:00:00Z");
+        assertEquals(ALL_TIME, VersionNumberPeriods.of("UTC", "LOCALE").getContinuing(next, previous));
+        assertEquals(ALL_TIME | Counter.BUILDS_THIS_WEEK.bit(),
+                VersionNumberPeriods.of("UTC", "ISO").getContinuing(next, previous));
+    }
+
+    @Test
+    void weeksOfTheSameNumberAreNotTheSameWeek() {
+        // Both are in the first week of 2023 by Calendar.WEEK_OF_YEAR, but almost a year apart.
+        assertEquals(YEAR, VersionNumberPeriods.of("UTC", null)
+                .getContinuing(millis("2023-12-31T12:00:00Z"), millis("2023-01-02T12:00:00Z")));
+    }
+
+    @Test
+    void builtInCountersFollowTheWeekRuleOfTheJob() {
+        VersionNumberCounter week = (VersionNumberCounter) VersionNumberVariables.get().get("BUILDS_THIS_WEEK");
+        long previous = millis("2024-12-30T12:00:00Z");
+        long next = millis("2025-01-01T12:00:00Z");
+        assertFalse(week.continues(VersionNumberPeriods.of("UTC", "LOCALE"), next, previous));
+        assertTrue(week.continues(VersionNumberPeriods.of("UTC", "ISO"), next, previous));
+        // Without a job, weeks follow the locale.
+        assertFalse(week.continues(ZonedDateTime.parse("2025-01-01T12:00:00Z"), ZonedDateTime.parse("2024-12-30T12:00:00Z")));
+        assertTrue(week.continues(ZonedDateTime.parse("2024-12-31T12:00:00Z"), ZonedDateTime.parse("2024-12-30T12:00:00Z")));
+    }
+
+    @Test
+    void testOf() {
+        assertSame(VersionNumberPeriods.DEFAULT, VersionNumberPeriods.of(null, null));
+        assertSame(VersionNumberPeriods.DEFAULT, VersionNumberPeriods.of(" ", ""));
+        assertThrows(IllegalArgumentException.class, () -> VersionNumberPeriods.of("Mars/Olympus_Mons", null));
+        assertThrows(IllegalArgumentException.class, () -> VersionNumberPeriods.of(null, "FORTNIGHT"));
+    }
+}
@@ -1,11 +1,19 @@
 package org.jvnet.hudson.tools.versionnumber;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
 import hudson.model.Result;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Map;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
 import org.junit.jupiter.api.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
@@ -39,6 +47,106 @@ class VersionNumberStepTest {
         j.assertLogContains("VersionNumber: " + todayDate + "-03", b3);
     }
 
+    @Test
+    void stepIsKeptAcrossRestarts(JenkinsRule j) throws Exception {
+        VersionNumbersStep step = new VersionNumbersStep();
+        step.setVersionNumberStrings(Map.of("maven", "1.0.${BUILDS_ALL_TIME}"));
+        step.setOverrideBuildsAllTime("42");
+        step.setTimeZone("Europe/Berlin");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(step);
+        }
+        VersionNumbersStep read;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            read = (VersionNumbersStep) in.readObject();
+        }
+        assertEquals(step.getKey(Map.of()), read.getKey(Map.of()));
+    }
+
+    @Test
+    void batchStepIsWrittenBackWithItsFormatStrings(JenkinsRule j) throws Exception {
+        VersionNumbersStep step = new VersionNumbersStep();
+        step.setVersionNumberStrings(Map.of("maven", "1.0.${BUILDS_ALL_TIME}"));
+        step.versionPrefix = "v";
+        StepDescriptor descriptor = step.getDescriptor();
+        Map<String, Object> arguments = descriptor.uninstantiate(step).toMap();
+        assertEquals(Map.of("maven", "1.0.${BUILDS_ALL_TIME}"), arguments.get("versionNumberStrings"));
+        VersionNumbersStep read = (VersionNumbersStep) descriptor.newInstance(arguments);
+        assertEquals(step.getKey(Map.of()), read.getKey(Map.of()));
+        assertEquals("maven=1.0.${BUILDS_ALL_TIME}\n", ((VersionNumbersStep.DescriptorImpl) descriptor).toText(read));
+    }
+
+    @Test
+    void errorsFailTheStep(JenkinsRule j) throws Exception {
+        WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                """
+                        def versionNumber = VersionNumber('${BUILD_DATE_FORMATTED, "yy}')
+                        echo "VersionNumber: ${versionNumber}"
+                        """,
+                false));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        j.waitForCompletion(b1);
+        j.assertBuildStatus(Result.FAILURE, b1);
+        j.assertLogContains("StringIndexOutOfBoundsException", b1);
+        j.assertLogNotContains("VersionNumber: ", b1);
+    }
+
+    @Test
+    void batchStepSharesOneComputation(JenkinsRule j) throws Exception {
+        WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                """
+                        def v = VersionNumbers(versionPrefix: 'v', versionNumberStrings: [maven: '1.0.${BUILDS_ALL_TIME}', docker: '1.0-${BUILDS_ALL_TIME, XX}'])
+                        echo "maven: ${v.maven}, docker: ${v.docker}"
+                        """,
+                false));
+        WorkflowRun b1 = j.buildAndAssertSuccess(p);
+        j.assertLogContains("maven: v1.0.1, docker: v1.0-01", b1);
+        WorkflowRun b2 = j.buildAndAssertSuccess(p);
+        j.assertLogContains("maven: v1.0.2, docker: v1.0-02", b2);
+
+        assertEquals(1, b2.getActions(VersionNumberAction.class).size());
+        VersionNumberAction action = b2.getAction(VersionNumberAction.class);
+        assertEquals("v1.0.2", action.getVersionNumber());
+        assertEquals(Map.of("maven", "v1.0.2", "docker", "v1.0-02"), action.getOutputs());
+    }
+
+    @Test
+    void repeatedCallsInOneRunReuseTheResult(JenkinsRule j) throws Exception {
+        WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                """
+                        def results = [:]
+                        parallel a: { results.a = VersionNumber('1.0.${BUILDS_ALL_TIME}') },
+                                 b: { results.b = VersionNumber('1.0.${BUILDS_ALL_TIME}') }
+                        def again = VersionNumber('1.0.${BUILDS_ALL_TIME}')
+                        def other = VersionNumber(versionNumberString: '1.0.${BUILDS_ALL_TIME}', versionPrefix: 'x')
+                        echo "a: ${results.a}, b: ${results.b}, again: ${again}, other: ${other}"
+                        """,
+                false));
+        WorkflowRun b1 = j.buildAndAssertSuccess(p);
+        j.assertLogContains("a: 1.0.1, b: 1.0.1, again: 1.0.1, other: x1.0.1", b1);
+        assertEquals(2, b1.getActions(VersionNumberAction.class).size());
+    }
+
+    @Test
+    void repeatedCallsWithOtherEnvironmentAreComputedAgain(JenkinsRule j) throws Exception {
+        WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                """
+                        def a = withEnv(['FLAVOR=a']) { VersionNumber('${FLAVOR}-${BUILDS_ALL_TIME}') }
+                        def b = withEnv(['FLAVOR=b']) { VersionNumber('${FLAVOR}-${BUILDS_ALL_TIME}') }
+                        def again = withEnv(['FLAVOR=a']) { VersionNumber('${FLAVOR}-${BUILDS_ALL_TIME}') }
+                        echo "a: ${a}, b: ${b}, again: ${again}"
+                        """,
+                false));
+        WorkflowRun b1 = j.buildAndAssertSuccess(p);
+        j.assertLogContains("a: a-1, b: b-1, again: a-1", b1);
+        assertEquals(2, b1.getActions(VersionNumberAction.class).size());
+    }
+
     @Test
     void skipFailedBuildsTrue(JenkinsRule j) throws Exception {
         String todayDate = new SimpleDateFormat("yy-MM-dd").format(new Date());
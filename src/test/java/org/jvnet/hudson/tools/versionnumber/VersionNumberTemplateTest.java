@@ -0,0 +1,173 @@
+package org.jvnet.hudson.tools.versionnumber;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import hudson.EnvVars;
+import java.text.SimpleDateFormat;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import org.jvnet.hudson.tools.versionnumber.VersionNumberCounters.Counter;
+import org.junit.jupiter.api.Test;
+
+class VersionNumberTemplateTest {
+
+    private static final String[] TEMPLATES = {
+        "1.0.${BUILDS_ALL_TIME}",
+        "${BUILDS_TODAY}.${BUILDS_THIS_WEEK}.${BUILDS_THIS_MONTH}.${BUILDS_THIS_YEAR}.${BUILDS_ALL_TIME}",
+        "${BUILD_DATE_FORMATTED, \"yy-MM-dd\"}-${BUILDS_TODAY, XX}",
+        "${BUILD_DATE_FORMATTED}",
+        "${VERSION_PREFIX}${BUILDS_ALL_TIME, XXXX}",
+        "${ENVVAL_TESTING, \"+3\"}.${ENVVAL_TESTING, \"-3\"}.${ENVVAL_TESTING, \"test\"}.${ENVVAL_TESTING, \"9\"}",
+        "${BUILD_YEAR}.${BUILD_MONTH, XX}.${BUILD_DAY, XX}.${BUILD_WEEK}",
+        "${BUILDS_TODAY_Z}${BUILDS_THIS_MONTH_Z}${BUILDS_THIS_YEAR_Z}${BUILDS_ALL_TIME_Z, XXX}",
+        "${MONTHS_SINCE_PROJECT_START}.${YEARS_SINCE_PROJECT_START, XX}",
+        "1.0.$BUILD_NUMBER-${UNKNOWN}-$UNKNOWN",
+        "unclosed ${BUILDS_TODAY",
+        "unclosed ${BUILDS_TODAY, ${VERSION_PREFIX}",
+        "a${}b${ BUILDS_TODAY}c${BUILDS_ALL_TIME,}",
+        "$${BUILDS_TODAY}",
+        "${NESTED}",
+        "${SELF}.${BUILDS_ALL_TIME}",
+        "${BUILDS_ALL_TIME, ${WIDTH}}",
+        "${build_number}.${BUILD_NUMBER, \"1\"}",
+        "{${BUILDS_TODAY}}",
+        "",
+    };
+
+    @Test
+    void compiledTemplatesExpandLikeTheFormatString() {
+        EnvVars env = new EnvVars();
+        env.put("VERSION_PREFIX", "2.0.");
+        env.put("ENVVAL_TESTING", "1234");
+        env.put("BUILD_NUMBER", "42");
+        env.put("NESTED", "${BUILDS_ALL_TIME}");
+        env.put("SELF", "${SELF}");
+        env.put("WIDTH", "XXX");
+        VersionNumberBuildInfo info = new VersionNumberBuildInfo(1, 7, 30, 365, 500);
+        Calendar buildDate = Calendar.getInstance();
+        buildDate.set(2024, Calendar.MARCH, 5, 10, 15, 0);
+        Date projectStartDate = VersionNumberCommon.parseDate("2020-11-30");
+
+        for (String template : TEMPLATES) {
+            for (Date startDate : new Date[] {projectStartDate, null}) {
+                assertEquals(
+                        VersionNumberCommon.expandVersionNumber(template, startDate, info, env, buildDate),
+                        VersionNumberCommon.formatVersionNumber(template, startDate, info, env, buildDate),
+                        template);
+            }
+        }
+    }
+
+    @Test
+    void valuesWhichMightFormBlocksAreNotCompiled() {
+        EnvVars env = new EnvVars();
+        env.put("VERSION_PREFIX", "2.0.");
+        env.put("NESTED", "${BUILDS_ALL_TIME}");
+        VersionNumberBuildInfo info = new VersionNumberBuildInfo(1, 1, 1, 1, 5);
+        Calendar buildDate = Calendar.getInstance();
+
+        assertNotNull(VersionNumberTemplate.of("${VERSION_PREFIX}${BUILDS_ALL_TIME}").render(null, info, env, buildDate));
+        assertNull(VersionNumberTemplate.of("${NESTED}").render(null, info, env, buildDate));
+        assertEquals("5", VersionNumberCommon.formatVersionNumber("${NESTED}", null, info, env, buildDate));
+    }
+
+    @Test
+    void cyclicVariablesAreIgnored() {
+        EnvVars env = new EnvVars();
+        env.put("PING", "${PONG}");
+        env.put("PONG", "${PING}");
+        env.put("GROWING", "a${GROWING}");
+        env.put("PREFIX", "1.${BUILDS_ALL_TIME}");
+        env.put("TWICE", "${PREFIX, \"2\"}-${PREFIX}");
+        env.put("OUTER", "${TWICE}");
+        VersionNumberBuildInfo info = new VersionNumberBuildInfo(1, 1, 1, 1, 5);
+        Calendar buildDate = Calendar.getInstance();
+
+        assertEquals("-", VersionNumberCommon.formatVersionNumber("${PING}-${PONG, \"5\"}", null, info, env, buildDate));
+        assertEquals("aa", VersionNumberCommon.formatVersionNumber("${GROWING}", null, info, env, buildDate));
+        // Using the same variable twice is no cycle.
+        assertEquals("1.-1.5", VersionNumberCommon.formatVersionNumber("${OUTER}", null, info, env, buildDate));
+    }
+
+    @Test
+    void plainMapsAreLookedUpLikeEnvVars() {
+        Map<String, String> env = new HashMap<>();
+        env.put("Prefix", "2.0.");
+        VersionNumberBuildInfo info = new VersionNumberBuildInfo(1, 1, 1, 1, 5);
+        Calendar buildDate = Calendar.getInstance();
+
+        // Variables are expanded ignoring case, blocks only match the exact name.
+        assertEquals("2.0.5-", VersionNumberCommon.formatVersionNumber("${PREFIX}${BUILDS_ALL_TIME}-${PREFIX, \"1\"}", null, info, env, buildDate));
+        assertEquals("2", VersionNumberCommon.formatVersionNumber("${Prefix, \"1\"}", null, info, env, buildDate));
+    }
+
+    @Test
+    void cachedDateFormatsFormatLikeSimpleDateFormat() {
+        String[] patterns = {
+            "yyyy-MM-dd", "yy-MM-dd", "y.M.d", "yyyyy", "yyyMMddHHmmss", "D DDD", "h:mm:ss.S K k", "SSS",
+            "'build' yyyy''MM", "''", "HH 'o''clock'", "# [d] {M}", "EEE, MMM d", "yyyy-MM-dd'T'HH:mm:ssZ", "YYYY-'W'ww-u",
+            "",
+        };
+        Calendar date = Calendar.getInstance();
+        date.set(2024, Calendar.MARCH, 5, 0, 7, 9);
+        date.set(Calendar.MILLISECOND, 42);
+        for (int hour : new int[] {0, 12, 23}) {
+            date.set(Calendar.HOUR_OF_DAY, hour);
+            for (String pattern : patterns) {
+                assertEquals(new SimpleDateFormat(pattern).format(date.getTime()),
+                        VersionNumberDateFormat.format(pattern, date.getTime(), TimeZone.getDefault()),
+                        pattern);
+            }
+            assertEquals(SimpleDateFormat.getInstance().format(date.getTime()),
+                    VersionNumberDateFormat.format(null, date.getTime(), TimeZone.getDefault()));
+        }
+        assertNotNull(VersionNumberDateFormat.translate("yyyy-MM-dd", ZoneId.systemDefault()));
+        assertNull(VersionNumberDateFormat.translate("EEE, MMM d", ZoneId.systemDefault()));
+    }
+
+    @Test
+    void dateVariablesAreExpandedInTheZoneOfTheCounters() {
+        String template = "${BUILD_YEAR}.${BUILD_MONTH, XX}.${BUILD_DAY, XX}-${BUILDS_TODAY} ${BUILD_DATE_FORMATTED, \"HH:mm\"}";
+        Map<String, String> env = new HashMap<>();
+        long previous = ZonedDateTime.parse("2024-03-05T10:00:00Z").toInstant().toEpochMilli();
+        long next = ZonedDateTime.parse("2024-03-05T12:00:00Z").toInstant().toEpochMilli();
+
+        VersionNumberPeriods utc = VersionNumberPeriods.of("UTC", null);
+        assertEquals(Counter.BUILDS_TODAY.bit(), utc.getContinuing(next, previous) & Counter.BUILDS_TODAY.bit());
+        assertEquals("2024.03.05-2 12:00", VersionNumberCommon.formatVersionNumber(template, null,
+                new VersionNumberBuildInfo(2, 2, 2, 2, 2), env, utc.getCalendar(next)));
+
+        // Midnight in Auckland (UTC+13) is 11:00 UTC: BUILDS_TODAY starts over, and so does the day.
+        VersionNumberPeriods auckland = VersionNumberPeriods.of("Pacific/Auckland", null);
+        assertEquals(0, auckland.getContinuing(next, previous) & Counter.BUILDS_TODAY.bit());
+        assertEquals("2024.03.05-1 23:00", VersionNumberCommon.formatVersionNumber(template, null,
+                new VersionNumberBuildInfo(1, 1, 1, 1, 1), env, auckland.getCalendar(previous)));
+        assertEquals("2024.03.06-1 01:00", VersionNumberCommon.formatVersionNumber(template, null,
+                new VersionNumberBuildInfo(1, 2, 2, 2, 2), env, auckland.getCalendar(next)));
+
+        // Friday, 2027-01-01 is in the last ISO week of 2026.
+        long newYear = ZonedDateTime.parse("2027-01-01T12:00:00Z").toInstant().toEpochMilli();
+        assertEquals("53", VersionNumberCommon.formatVersionNumber("${BUILD_WEEK}", null,
+                new VersionNumberBuildInfo(1, 1, 1, 1, 1), env, VersionNumberPeriods.of("UTC", "ISO").getCalendar(newYear)));
+    }
+
+    @Test
+    void numbersArePaddedWithZeros() {
+        StringBuilder sb = new StringBuilder();
+        VersionNumberTemplate.appendPadded(sb, 7, 3);
+        sb.append('|');
+        VersionNumberTemplate.appendPadded(sb, 1234, 2);
+        sb.append('|');
+        VersionNumberTemplate.appendPadded(sb, -1, 3);
+        sb.append('|');
+        VersionNumberTemplate.appendPadded(sb, 0, 0);
+        assertEquals("007|1234|0-1|0", sb.toString());
+    }
+}